@@ -0,0 +1,349 @@
+package android.print;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+import android.webkit.WebResourceResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves the local files a document references (images, fonts, style sheets) to the
+ * WebView from memory, so that resources shared by many conversions are read from disk
+ * once per process.
+ * <p>
+ * A conversion registers its assets as a map from the URL used in the HTML to a local
+ * source: an absolute path, a {@code file://} URL or a {@code content://} URI. Entries are
+ * keyed by source, so the same file registered under different URLs is held once. File
+ * entries are also keyed by size and modification time, so an edited file is read again.
+ * {@code content://} entries are keyed the same way by the size and last modified time
+ * their provider reports; the entries of providers that report no modification time are
+ * kept until evicted. The least recently used entries are evicted when the cache grows
+ * beyond its byte cap, and the cache is cleared when the system reports memory pressure. Safe to use from any thread;
+ * the WebView requests assets on a background thread.
+ */
+public class AssetCache implements ComponentCallbacks2 {
+
+    private static final String TAG = "AssetCache";
+    public static final long DEFAULT_MAX_SIZE_BYTES = 8 * 1024 * 1024;
+
+    private static AssetCache sInstance;
+
+    /**
+     * Entry contents in access order, least recently used first.
+     */
+    private final LinkedHashMap<String, byte[]> mEntries = new LinkedHashMap<> (16, 0.75f, true);
+    /**
+     * One lock per source that is being read, so that WebViews asking for the same asset
+     * at the same time read it once.
+     */
+    private final HashMap<String, Object> mLoading = new HashMap<> ();
+    private long mMaxSizeBytes = DEFAULT_MAX_SIZE_BYTES;
+    private long mSizeBytes;
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+    private boolean mCallbacksRegistered;
+
+    private AssetCache () {
+    }
+
+    public static synchronized AssetCache getInstance () {
+        if (sInstance == null)
+            sInstance = new AssetCache ();
+
+        return sInstance;
+    }
+
+    /**
+     * Returns a response for {@code url} if it is one of {@code assets}, or {@code null} to
+     * let the WebView load it normally. Assets that can't be read are logged and left to the
+     * WebView as well.
+     */
+    public WebResourceResponse intercept (Context context, Map<String, String> assets, String url) {
+        if (assets == null || url == null)
+            return null;
+        String source = assets.get (url);
+        if (source == null)
+            return null;
+        try {
+            byte[] data = get (context, source);
+            return new WebResourceResponse (getMimeType (context, source, url), null, new ByteArrayInputStream (data));
+        } catch (IOException e) {
+            Log.d (TAG, "Failed to read asset " + source, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the contents of {@code source}, reading it into the cache if needed. Sources
+     * larger than the whole cache are read every time.
+     */
+    public byte[] get (Context context, String source) throws IOException {
+        registerCallbacks (context);
+        String key = getEntryKey (context, source);
+        Object lock;
+        synchronized (this) {
+            byte[] data = mEntries.get (key);
+            if (data != null) {
+                mHits++;
+                return data;
+            }
+            lock = mLoading.get (key);
+            if (lock == null) {
+                lock = new Object ();
+                mLoading.put (key, lock);
+            }
+        }
+        synchronized (lock) {
+            synchronized (this) {
+                // another thread may have read it while this one waited
+                byte[] data = mEntries.get (key);
+                if (data != null) {
+                    mHits++;
+                    return data;
+                }
+                mMisses++;
+            }
+            try {
+                byte[] data = read (context, source);
+                put (key, data);
+                return data;
+            } finally {
+                synchronized (this) {
+                    mLoading.remove (key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads {@code sources} into the cache ahead of the conversions that use them.
+     *
+     * @return the number of sources that had to be read
+     */
+    public int preload (Context context, Iterable<String> sources) throws IOException {
+        int read = 0;
+        for (String source : sources) {
+            int misses = getMissCount ();
+            get (context, source);
+            if (getMissCount () != misses)
+                read++;
+        }
+        return read;
+    }
+
+    /**
+     * Identifies the current contents of {@code source}, for the keys of cached renders that
+     * used it. Files, and {@code content://} sources whose provider reports a modification
+     * time, are identified by size and modification time without being read. Other sources
+     * are identified by a hash of their cached contents, read into the cache if needed.
+     * Sources that can't be read are reported as such rather than failing, as the WebView
+     * then loads them itself.
+     */
+    public String getVersion (Context context, String source) {
+        String version = getStatVersion (context, source);
+        if (version != null)
+            return version;
+        try {
+            byte[] data = get (context, source);
+            return toHex (MessageDigest.getInstance ("SHA-256").digest (data));
+        } catch (IOException e) {
+            return "unreadable";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException (e);
+        }
+    }
+
+    public synchronized void setMaxSizeBytes (long maxSizeBytes) {
+        mMaxSizeBytes = Math.max (0, maxSizeBytes);
+        trimTo (mMaxSizeBytes);
+    }
+
+    public synchronized long getMaxSizeBytes () {
+        return mMaxSizeBytes;
+    }
+
+    public synchronized long getSizeBytes () {
+        return mSizeBytes;
+    }
+
+    public synchronized int getEntryCount () {
+        return mEntries.size ();
+    }
+
+    public synchronized int getHitCount () {
+        return mHits;
+    }
+
+    public synchronized int getMissCount () {
+        return mMisses;
+    }
+
+    public synchronized int getEvictionCount () {
+        return mEvictions;
+    }
+
+    public synchronized void clear () {
+        mEntries.clear ();
+        mSizeBytes = 0;
+    }
+
+    @Override
+    public void onTrimMemory (int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            Log.d (TAG, "onTrimMemory(" + level + "): clearing cache");
+            clear ();
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            synchronized (this) {
+                trimTo (mSizeBytes / 2);
+            }
+        }
+    }
+
+    @Override
+    public void onLowMemory () {
+        clear ();
+    }
+
+    @Override
+    public void onConfigurationChanged (Configuration newConfig) {
+    }
+
+    private synchronized void put (String source, byte[] data) {
+        if (data.length > mMaxSizeBytes)
+            return;
+        byte[] previous = mEntries.put (source, data);
+        if (previous != null)
+            mSizeBytes -= previous.length;
+        mSizeBytes += data.length;
+        trimTo (mMaxSizeBytes);
+    }
+
+    /**
+     * Evicts the least recently used entries until at most {@code sizeBytes} remain.
+     * Called with the lock held.
+     */
+    private void trimTo (long sizeBytes) {
+        Iterator<byte[]> entries = mEntries.values ().iterator ();
+        while (mSizeBytes > sizeBytes && entries.hasNext ()) {
+            mSizeBytes -= entries.next ().length;
+            entries.remove ();
+            mEvictions++;
+        }
+    }
+
+    private synchronized void registerCallbacks (Context context) {
+        if (mCallbacksRegistered)
+            return;
+
+        context.getApplicationContext ().registerComponentCallbacks (this);
+        mCallbacksRegistered = true;
+    }
+
+    private static String getEntryKey (Context context, String source) {
+        String version = getStatVersion (context, source);
+        return version != null ? source + "#" + version : source;
+    }
+
+    /**
+     * The size and modification time of a file source or of a {@code content://} source
+     * whose provider reports them, otherwise {@code null}.
+     */
+    private static String getStatVersion (Context context, String source) {
+        Uri uri = toUri (source);
+        if ("content".equals (uri.getScheme ()))
+            return getContentVersion (context, uri);
+        if (!"file".equals (uri.getScheme ()) || uri.getPath () == null)
+            return null;
+        File file = new File (uri.getPath ());
+        return file.exists () ? file.length () + ":" + file.lastModified () : "missing";
+    }
+
+    /**
+     * The size and last modified time the provider reports for {@code uri}, or {@code null}
+     * if it reports no modification time.
+     */
+    private static String getContentVersion (Context context, Uri uri) {
+        try (Cursor cursor = context.getContentResolver ().query (uri, null, null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst ())
+                return null;
+            int modified = cursor.getColumnIndex (DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            if (modified == -1 || cursor.isNull (modified))
+                return null;
+            int size = cursor.getColumnIndex (OpenableColumns.SIZE);
+            String sizeVersion = size != -1 && !cursor.isNull (size) ? String.valueOf (cursor.getLong (size)) : "";
+            return sizeVersion + ":" + cursor.getLong (modified);
+        } catch (RuntimeException e) {
+            // providers may refuse queries they don't support
+            Log.d (TAG, "Failed to query " + uri, e);
+            return null;
+        }
+    }
+
+    private static Uri toUri (String source) {
+        return source.startsWith ("/") ? Uri.fromFile (new File (source)) : Uri.parse (source);
+    }
+
+    private static String toHex (byte[] bytes) {
+        StringBuilder hex = new StringBuilder (bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append (Character.forDigit ((b >> 4) & 0xF, 16)).append (Character.forDigit (b & 0xF, 16));
+        }
+        return hex.toString ();
+    }
+
+    private static byte[] read (Context context, String source) throws IOException {
+        Uri uri = toUri (source);
+        try (InputStream in = context.getContentResolver ().openInputStream (uri)) {
+            if (in == null)
+                throw new FileNotFoundException ("RNHTMLtoPDF error: Could not open " + source);
+            ByteArrayOutputStream out = new ByteArrayOutputStream ();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read (buffer)) != -1) {
+                out.write (buffer, 0, read);
+            }
+            return out.toByteArray ();
+        }
+    }
+
+    /**
+     * The type the content provider reports for a {@code content://} source, otherwise the
+     * type of the source's extension, otherwise that of the requested URL's. Content URIs
+     * usually have no extension, and the WebView refuses style sheets without a CSS type.
+     */
+    private static String getMimeType (Context context, String source, String url) {
+        Uri uri = toUri (source);
+        String mimeType = "content".equals (uri.getScheme ()) ? context.getContentResolver ().getType (uri) : null;
+        if (mimeType == null)
+            mimeType = getMimeTypeFromExtension (source);
+        if (mimeType == null)
+            mimeType = getMimeTypeFromExtension (url);
+        return mimeType != null ? mimeType : "application/octet-stream";
+    }
+
+    private static String getMimeTypeFromExtension (String url) {
+        String extension = MimeTypeMap.getFileExtensionFromUrl (url);
+        return extension != null && !extension.isEmpty ()
+                ? MimeTypeMap.getSingleton ().getMimeTypeFromExtension (extension.toLowerCase ())
+                : null;
+    }
+}
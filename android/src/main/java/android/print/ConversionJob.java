@@ -0,0 +1,265 @@
+package android.print;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.webkit.WebView;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * State of a single HTML to PDF conversion.
+ * <p>
+ * Every request gets its own job, so jobs that render at the same time never share
+ * output files, WebViews or callbacks.
+ */
+public class ConversionJob {
+
+    public enum State {
+        CREATED, QUEUED, RENDERING, FINISHED, FAILED
+    }
+
+    public interface Listener {
+        void onFinished (ConversionJob job);
+
+        void onFailed (ConversionJob job, Exception error);
+    }
+
+    /**
+     * Reads the PDF while the WebView writes it. Runs on a thread of its own and must read
+     * until the end of the stream; the job finishes once both the write and the consumer
+     * are done, and fails if either failed.
+     */
+    public interface StreamConsumer {
+        void consume (ConversionJob job, InputStream pdf) throws Exception;
+    }
+
+    private static final PageRange[] ALL_PAGES = {PageRange.ALL_PAGES};
+
+    /**
+     * Higher priority first, then first come first served.
+     */
+    static final Comparator<ConversionJob> PRIORITY_ORDER = new Comparator<ConversionJob> () {
+        @Override
+        public int compare (ConversionJob a, ConversionJob b) {
+            if (a.mPriority != b.mPriority)
+                return a.mPriority > b.mPriority ? -1 : 1;
+            return a.mSequence < b.mSequence ? -1 : (a.mSequence == b.mSequence ? 0 : 1);
+        }
+    };
+
+    private final String mHtmlString;
+    private final String mHtmlUrl;
+    private final File mPdfFile;
+    private PrintAttributes mPdfPrintAttrs;
+    private int mPriority;
+    private Listener mListener;
+    private Map<String, String> mAssets;
+    private Readiness mReadiness = Readiness.DEFAULT;
+    private PageRange[] mPages = ALL_PAGES;
+    private StreamConsumer mStreamConsumer;
+    private volatile State mState = State.CREATED;
+    private volatile Exception mError;
+
+    // Owned by PdfConverter, only touched on the main thread once the job is rendering.
+    long mSequence;
+    Context mContext;
+    WebView mWebView;
+    ParcelFileDescriptor mOutput;
+    CancellationSignal mCancellation;
+    boolean mIsWriting;
+    boolean mPolling;
+    boolean mStreaming;
+    boolean mStreamFinished;
+    boolean mWriteFinished;
+    Exception mStreamError;
+    Exception mWriteError;
+    volatile int mReloads;
+    Runnable mTimeout;
+    // Set by PdfConverter.cancel() on any thread.
+    volatile boolean mCancelled;
+    // SystemClock.elapsedRealtime() of the stages, set by PdfConverter.
+    volatile long mQueuedAt;
+    volatile long mStartedAt;
+    volatile long mLoadedAt;
+    volatile long mPrintedAt;
+    volatile long mFinishedAt;
+
+    public ConversionJob (String htmlString, File pdfFile) {
+        this (htmlString, null, pdfFile);
+    }
+
+    private ConversionJob (String htmlString, String htmlUrl, File pdfFile) {
+        mHtmlString = htmlString;
+        mHtmlUrl = htmlUrl;
+        mPdfFile = pdfFile;
+    }
+
+    /**
+     * A job whose HTML the WebView loads itself from a {@code file://} or {@code content://}
+     * URL, so the markup is never held in the Java heap.
+     */
+    public static ConversionJob forUrl (String htmlUrl, File pdfFile) {
+        return new ConversionJob (null, htmlUrl, pdfFile);
+    }
+
+    public String getHtmlString () {
+        return mHtmlString;
+    }
+
+    public String getHtmlUrl () {
+        return mHtmlUrl;
+    }
+
+    public File getPdfFile () {
+        return mPdfFile;
+    }
+
+    public PrintAttributes getPdfPrintAttrs () {
+        return mPdfPrintAttrs != null ? mPdfPrintAttrs : PdfConverter.getDefaultPrintAttrs ();
+    }
+
+    public ConversionJob setPdfPrintAttrs (PrintAttributes printAttrs) {
+        mPdfPrintAttrs = printAttrs;
+        return this;
+    }
+
+    public int getPriority () {
+        return mPriority;
+    }
+
+    public ConversionJob setPriority (int priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    public Map<String, String> getAssets () {
+        return mAssets;
+    }
+
+    /**
+     * Local files the HTML references, by the URL it uses for them. They are served from
+     * the {@link AssetCache} instead of being loaded by the WebView.
+     */
+    public ConversionJob setAssets (Map<String, String> assets) {
+        mAssets = assets;
+        return this;
+    }
+
+    public Readiness getReadiness () {
+        return mReadiness;
+    }
+
+    public ConversionJob setReadiness (Readiness readiness) {
+        mReadiness = readiness != null ? readiness : Readiness.DEFAULT;
+        return this;
+    }
+
+    public PageRange[] getPages () {
+        return mPages;
+    }
+
+    /**
+     * The zero-based pages to write. The WebView still lays out the whole document, but
+     * only these pages are printed, so a preview of the first page is written in a fraction
+     * of the time of the whole document. Pages past the end are ignored.
+     */
+    public ConversionJob setPages (PageRange[] pages) {
+        mPages = pages != null && pages.length > 0 ? pages : ALL_PAGES;
+        return this;
+    }
+
+    public StreamConsumer getStreamConsumer () {
+        return mStreamConsumer;
+    }
+
+    /**
+     * Has the WebView write into a pipe that {@code consumer} reads, instead of into the
+     * PDF file. The file is then left for the consumer to write.
+     */
+    public ConversionJob streamTo (StreamConsumer consumer) {
+        mStreamConsumer = consumer;
+        return this;
+    }
+
+    public ConversionJob setListener (Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    public State getState () {
+        return mState;
+    }
+
+    public Exception getError () {
+        return mError;
+    }
+
+    public boolean isCancelled () {
+        return mCancelled;
+    }
+
+    /**
+     * Time spent waiting in the queue for a free rendering slot.
+     */
+    public long getQueueTimeMs () {
+        return elapsed (mQueuedAt, mStartedAt);
+    }
+
+    /**
+     * Time the WebView took to load the HTML, until the page first finished loading.
+     */
+    public long getLayoutTimeMs () {
+        return elapsed (mStartedAt, mLoadedAt);
+    }
+
+    /**
+     * Time from the page first finishing loading until it was ready to print, including
+     * reloads and waiting for the {@link Readiness} conditions.
+     */
+    public long getReadyTimeMs () {
+        return elapsed (mLoadedAt, mPrintedAt);
+    }
+
+    /**
+     * Number of times the page was reloaded because it had no content.
+     */
+    public int getReloadCount () {
+        return mReloads;
+    }
+
+    /**
+     * Time {@link PrintDocumentAdapter#onWrite} took to write the PDF.
+     */
+    public long getWriteTimeMs () {
+        return elapsed (mPrintedAt, mFinishedAt);
+    }
+
+    private static long elapsed (long from, long to) {
+        return from > 0 && to >= from ? to - from : 0;
+    }
+
+    static long now () {
+        return SystemClock.elapsedRealtime ();
+    }
+
+    void setState (State state) {
+        mState = state;
+    }
+
+    void finish (Exception error) {
+        mError = error;
+        mState = error == null ? State.FINISHED : State.FAILED;
+        if (mListener == null)
+            return;
+
+        if (error == null)
+            mListener.onFinished (this);
+        else
+            mListener.onFailed (this, error);
+    }
+}
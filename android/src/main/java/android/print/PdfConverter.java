@@ -5,49 +5,79 @@
 
 package android.print;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
-import android.net.http.SslError;
 import android.os.Build;
+import android.os.CancellationSignal;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
-import android.util.Base64;
 import android.util.Log;
-import android.webkit.SslErrorHandler;
-import android.webkit.WebSettings;
+import android.webkit.ValueCallback;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
-import com.facebook.react.bridge.Promise;
-import com.facebook.react.bridge.WritableMap;
-
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.concurrent.Semaphore;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Converts HTML to PDF.
  * <p>
- * Can convert only one task at a time, any requests to do more conversions before
- * ending the current task are ignored.
+ * Every request is a {@link ConversionJob}. Jobs wait in a bounded priority queue and up
+ * to {@link #getMaxParallelJobs()} of them render at the same time, each in its own
+ * WebView. When the queue is full, new jobs are rejected or the caller waits for room,
+ * depending on the {@link QueueFullPolicy}. A loaded page is printed once it is ready
+ * according to the job's {@link Readiness}. Its PDF goes to the job's file or, for jobs
+ * with a {@link ConversionJob.StreamConsumer}, through a pipe to the consumer. Jobs can be
+ * {@link #cancel cancelled} at any point before they finish.
  */
-public class PdfConverter implements Runnable {
+public class PdfConverter {
 
     private static final String TAG = "PdfConverter";
     private static PdfConverter sInstance;
 
-    private Context mContext;
+    public static final int DEFAULT_MAX_PARALLEL_JOBS = 2;
+    public static final int DEFAULT_MAX_QUEUED_JOBS = 32;
+
+    public enum QueueFullPolicy {
+        REJECT, WAIT
+    }
+
+    private final Object mLock = new Object ();
+    private final PriorityQueue<ConversionJob> mPendingJobs = new PriorityQueue<> (11, ConversionJob.PRIORITY_ORDER);
+    private final Handler mMainHandler = new Handler (Looper.getMainLooper ());
+    /**
+     * Runs the stream consumers, one thread per streaming job. A consumer that waited for a
+     * shared thread would stall the WebView writing into its pipe.
+     */
+    private final ExecutorService mStreamReaders = Executors.newCachedThreadPool (new ThreadFactory () {
+        private final AtomicInteger mCount = new AtomicInteger ();
 
-    private Semaphore mMutex;
-    private String mHtmlString;
-    private File mPdfFile;
-    private PrintAttributes mPdfPrintAttrs;
-    private boolean mIsCurrentlyConverting;
-    private WebView mWebView;
-    private boolean mShouldEncode;
-    private WritableMap mResultMap;
-    private Promise mPromise;
+        @Override
+        public Thread newThread (Runnable runnable) {
+            return new Thread (runnable, "PdfConverter-stream-" + mCount.incrementAndGet ());
+        }
+    });
+    private int mRunningJobs;
+    private long mNextSequence;
+    private int mMaxParallelJobs = DEFAULT_MAX_PARALLEL_JOBS;
+    private int mMaxQueuedJobs = DEFAULT_MAX_QUEUED_JOBS;
+    private QueueFullPolicy mQueueFullPolicy = QueueFullPolicy.REJECT;
+
+    private final Runnable mStartPendingJobs = new Runnable () {
+        @Override
+        public void run () {
+            startPendingJobs ();
+        }
+    };
 
     private PdfConverter () {
     }
@@ -59,102 +89,352 @@ public class PdfConverter implements Runnable {
         return sInstance;
     }
 
-    @Override
-    public void run () {
-        mWebView = new WebView (mContext);
-        WebSettings settings = mWebView.getSettings ();
-        settings.setDefaultTextEncodingName ("utf-8");
-        settings.setAllowFileAccess (true);
-        settings.setAllowContentAccess(true);
-        settings.setAllowFileAccessFromFileURLs(true);
-        settings.setDomStorageEnabled(true);
-        settings.setAllowUniversalAccessFromFileURLs(true);
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            mWebView.setRendererPriorityPolicy (WebView.RENDERER_PRIORITY_IMPORTANT, false);
-        }
-        mWebView.setWebViewClient (new WebViewClient () {
+    public int getMaxParallelJobs () {
+        synchronized (mLock) {
+            return mMaxParallelJobs;
+        }
+    }
+
+    public void setMaxParallelJobs (int maxParallelJobs) {
+        synchronized (mLock) {
+            mMaxParallelJobs = Math.max (1, maxParallelJobs);
+        }
+        mMainHandler.post (mStartPendingJobs);
+    }
+
+    public void setMaxQueuedJobs (int maxQueuedJobs) {
+        synchronized (mLock) {
+            mMaxQueuedJobs = Math.max (1, maxQueuedJobs);
+            mLock.notifyAll ();
+        }
+    }
+
+    public void setQueueFullPolicy (QueueFullPolicy policy) {
+        synchronized (mLock) {
+            mQueueFullPolicy = policy;
+        }
+    }
+
+    /**
+     * Queues a job for conversion. If the queue is full the job is rejected with a
+     * {@link RejectedExecutionException}, or, with {@link QueueFullPolicy#WAIT}, the calling
+     * thread blocks until there is room. The main thread is never blocked, as the queue only
+     * drains there; callers that want to wait must submit from a background thread.
+     */
+    public void submit (Context context, ConversionJob job) throws Exception {
+        if (context == null)
+            throw new Exception ("context can't be null");
+        if (job.getHtmlString () == null && job.getHtmlUrl () == null)
+            throw new Exception ("htmlString can't be null");
+        if (job.getPdfFile () == null)
+            throw new Exception ("file can't be null");
+
+        synchronized (mLock) {
+            if (job.mCancelled)
+                throw newCancellationException ();
+            while (mPendingJobs.size () >= mMaxQueuedJobs) {
+                if (mQueueFullPolicy == QueueFullPolicy.REJECT || Looper.myLooper () == Looper.getMainLooper ())
+                    throw new RejectedExecutionException ("RNHTMLtoPDF error: Conversion queue is full.");
+                mLock.wait ();
+            }
+            job.mContext = context;
+            job.mSequence = mNextSequence++;
+            job.mQueuedAt = ConversionJob.now ();
+            job.setState (ConversionJob.State.QUEUED);
+            mPendingJobs.add (job);
+        }
+        mMainHandler.post (mStartPendingJobs);
+    }
+
+    /**
+     * Cancels a job. A queued job fails right away. A rendering job stops loading, or has its
+     * print aborted, and fails on the main thread. In every case the job's listener is told
+     * through {@link ConversionJob.Listener#onFailed} with a {@link CancellationException}.
+     */
+    public void cancel (final ConversionJob job) {
+        job.mCancelled = true;
+        boolean dequeued;
+        synchronized (mLock) {
+            dequeued = mPendingJobs.remove (job);
+            if (dequeued)
+                mLock.notifyAll ();
+        }
+        if (dequeued) {
+            job.finish (newCancellationException ());
+            return;
+        }
+        mMainHandler.post (new Runnable () {
+            @Override
+            public void run () {
+                cancelRunning (job);
+            }
+        });
+    }
+
+    private void cancelRunning (ConversionJob job) {
+        if (job.getState () != ConversionJob.State.RENDERING)
+            return;
+        if (job.mWebView == null || job.mWriteFinished) {
+            // A streaming job whose write is done; onStreamFinished() reports it as cancelled
+            // once the consumer returns.
+            return;
+        }
+        if (job.mCancellation != null) {
+            // The write callback reports the job once the WebView has stopped.
+            job.mCancellation.cancel ();
+            return;
+        }
+        job.mWebView.stopLoading ();
+        finish (job, null);
+    }
+
+    private void startPendingJobs () {
+        while (true) {
+            ConversionJob job;
+            synchronized (mLock) {
+                if (mRunningJobs >= mMaxParallelJobs || mPendingJobs.isEmpty ())
+                    return;
+                job = mPendingJobs.poll ();
+                mRunningJobs++;
+                mLock.notifyAll ();
+            }
+            start (job);
+        }
+    }
+
+    private void start (final ConversionJob job) {
+        job.setState (ConversionJob.State.RENDERING);
+        job.mStartedAt = ConversionJob.now ();
+        job.mWebView = WebViewPool.getInstance ().acquire (job.mContext);
+        scheduleTimeout (job);
+        // asset requests arrive on a WebView thread, possibly after the job has finished
+        final Context appContext = job.mContext.getApplicationContext ();
+        final Map<String, String> assets = job.getAssets ();
+        job.mWebView.setWebViewClient (new WebViewClient () {
+            @Override
+            public WebResourceResponse shouldInterceptRequest (WebView view, String url) {
+                WebResourceResponse response = AssetCache.getInstance ().intercept (appContext, assets, url);
+                return response != null ? response : super.shouldInterceptRequest (view, url);
+            }
+
             @Override
             public void onPageFinished (WebView view, String url) {
                 super.onPageFinished (view, url);
-                if (view.getContentHeight () == 0) {
-                    view.reload ();
+                onPageLoaded (job);
+            }
+        });
+        if (job.getHtmlUrl () != null)
+            job.mWebView.loadUrl (job.getHtmlUrl ());
+        else
+            job.mWebView.loadDataWithBaseURL ("file:///", job.getHtmlString (), "text/HTML", "utf-8", null);
+    }
+
+    /**
+     * Fails the job if it hasn't started printing when its {@link Readiness} timeout has
+     * passed, also when the page never finishes loading.
+     */
+    private void scheduleTimeout (final ConversionJob job) {
+        final long timeoutMs = job.getReadiness ().getTimeoutMs ();
+        if (timeoutMs == Readiness.NO_TIMEOUT)
+            return;
+        job.mTimeout = new Runnable () {
+            @Override
+            public void run () {
+                job.mTimeout = null;
+                if (job.getState () != ConversionJob.State.RENDERING || job.mIsWriting)
                     return;
-                }
-                if (!mIsCurrentlyConverting) {
-                    mIsCurrentlyConverting = true;
-                    PrintDocumentAdapter printAdapter = mWebView.createPrintDocumentAdapter ();
-                    printAdapter.onLayout (null, getPdfPrintAttrs (), null, new PrintDocumentAdapter.LayoutResultCallback () {
-                    }, null);
-                    printAdapter.onWrite (new PageRange[]{PageRange.ALL_PAGES}, getOutputFileDescriptor (), null, new PrintDocumentAdapter.WriteResultCallback () {
-                        @Override
-                        public void onWriteFinished (PageRange[] pages) {
-                            super.onWriteFinished (pages);
-                            destroy ();
-                            mMutex.release ();
-                        }
-
-                        @Override
-                        public void onWriteFailed (CharSequence error) {
-                            super.onWriteFailed (error);
-                            destroy ();
-                            mMutex.release ();
-                        }
-
-                        @Override
-                        public void onWriteCancelled () {
-                            super.onWriteCancelled ();
-                            destroy ();
-                            mMutex.release ();
-                        }
-                    });
-                }
+                finish (job, new Exception ("RNHTMLtoPDF error: Page was not ready after " + timeoutMs + " ms."));
             }
+        };
+        mMainHandler.postDelayed (job.mTimeout, timeoutMs);
+    }
+
+    private void onPageLoaded (ConversionJob job) {
+        if (job.getState () != ConversionJob.State.RENDERING || job.mIsWriting)
+            return;
+        if (job.mLoadedAt == 0)
+            job.mLoadedAt = ConversionJob.now ();
+        if (job.mWebView.getContentHeight () == 0 && job.mReloads < job.getReadiness ().getMaxReloads ()) {
+            job.mReloads++;
+            job.mWebView.reload ();
+            return;
+        }
+        if (!job.mPolling) {
+            job.mPolling = true;
+            checkReady (job);
+        }
+    }
 
+    /**
+     * Prints the page once it has content and the job's {@link Readiness} conditions hold,
+     * polling until then or until the timeout fails the job. A page that meets its conditions
+     * but is still empty after its reloads fails the job.
+     */
+    private void checkReady (final ConversionJob job) {
+        if (job.getState () != ConversionJob.State.RENDERING || job.mIsWriting)
+            return;
+        final Readiness readiness = job.getReadiness ();
+        final Runnable poll = new Runnable () {
+            @Override
+            public void run () {
+                checkReady (job);
+            }
+        };
+        String script = readiness.getScript ();
+        if (script == null) {
+            onReadyChecked (job, true, poll);
+            return;
+        }
+        job.mWebView.evaluateJavascript (script, new ValueCallback<String> () {
+            @Override
+            public void onReceiveValue (String value) {
+                onReadyChecked (job, "true".equals (value), poll);
+            }
         });
-        mWebView.loadDataWithBaseURL ("file:///", mHtmlString, "text/HTML", "utf-8", null);
     }
 
-    public PrintAttributes getPdfPrintAttrs () {
-        return mPdfPrintAttrs != null ? mPdfPrintAttrs : getDefaultPrintAttrs ();
+    private void onReadyChecked (ConversionJob job, boolean ready, Runnable poll) {
+        // the job may have been cancelled while the script ran
+        if (job.getState () != ConversionJob.State.RENDERING || job.mIsWriting)
+            return;
+        if (job.mCancelled) {
+            finish (job, null);
+            return;
+        }
+        if (ready && job.mWebView.getContentHeight () > 0) {
+            job.mIsWriting = true;
+            print (job);
+            return;
+        }
+        if (ready && job.mReloads >= job.getReadiness ().getMaxReloads ()) {
+            // an empty page would otherwise hold its slot and WebView for good
+            finish (job, new Exception ("RNHTMLtoPDF error: Page had no content after " + job.mReloads + " reloads."));
+            return;
+        }
+        mMainHandler.postDelayed (poll, Readiness.POLL_INTERVAL_MS);
     }
 
-    public void setPdfPrintAttrs (PrintAttributes printAttrs) {
-        this.mPdfPrintAttrs = printAttrs;
+    private void print (final ConversionJob job) {
+        // a cancelled job's files may already have been deleted, don't create them again
+        if (job.mCancelled) {
+            finish (job, null);
+            return;
+        }
+        job.mPrintedAt = ConversionJob.now ();
+        job.mOutput = getOutputFileDescriptor (job);
+        if (job.mOutput == null) {
+            finish (job, new Exception ("RNHTMLtoPDF error: Could not open output file."));
+            return;
+        }
+        job.mCancellation = new CancellationSignal ();
+        PrintDocumentAdapter printAdapter = job.mWebView.createPrintDocumentAdapter ();
+        printAdapter.onLayout (null, job.getPdfPrintAttrs (), job.mCancellation, new PrintDocumentAdapter.LayoutResultCallback () {
+        }, null);
+        printAdapter.onWrite (job.getPages (), job.mOutput, job.mCancellation, new PrintDocumentAdapter.WriteResultCallback () {
+            @Override
+            public void onWriteFinished (PageRange[] pages) {
+                super.onWriteFinished (pages);
+                finish (job, null);
+            }
+
+            @Override
+            public void onWriteFailed (CharSequence error) {
+                super.onWriteFailed (error);
+                finish (job, new Exception ("RNHTMLtoPDF error: " + error));
+            }
+
+            @Override
+            public void onWriteCancelled () {
+                super.onWriteCancelled ();
+                finish (job, newCancellationException ());
+            }
+        });
     }
 
-    public void convert (Context context, String htmlString, File file, boolean shouldEncode, WritableMap resultMap,
-                         Promise promise, Semaphore mutex) throws Exception {
-        if (context == null)
-            throw new Exception ("context can't be null");
-        if (htmlString == null)
-            throw new Exception ("htmlString can't be null");
-        if (file == null)
-            throw new Exception ("file can't be null");
+    private void finish (ConversionJob job, Exception error) {
+        job.mFinishedAt = ConversionJob.now ();
+        if (job.mTimeout != null) {
+            mMainHandler.removeCallbacks (job.mTimeout);
+            job.mTimeout = null;
+        }
+        if (job.mCancelled)
+            error = newCancellationException ();
+        // for streaming jobs this is the end of the pipe
+        closeQuietly (job.mOutput);
+        job.mOutput = null;
+        job.mCancellation = null;
+        WebViewPool.getInstance ().release (job.mWebView);
+        job.mWebView = null;
+        job.mContext = null;
+        synchronized (mLock) {
+            mRunningJobs--;
+        }
+        if (job.mStreaming && !job.mStreamFinished) {
+            // onStreamFinished() reports the job once the consumer is done
+            job.mWriteFinished = true;
+            job.mWriteError = error;
+        } else {
+            // a consumer that failed first caused the write to fail
+            job.finish (job.mStreamError != null && !job.mCancelled ? job.mStreamError : error);
+        }
+        startPendingJobs ();
+    }
 
-        if (mIsCurrentlyConverting)
+    private void onStreamFinished (ConversionJob job, Exception error) {
+        job.mStreamFinished = true;
+        job.mStreamError = error;
+        if (!job.mWriteFinished)
             return;
+        Exception writeError = job.mCancelled ? newCancellationException () : job.mWriteError;
+        job.finish (writeError != null ? writeError : error);
+    }
 
-        mContext = context;
-        mHtmlString = htmlString;
-        mPdfFile = file;
-        mShouldEncode = shouldEncode;
-        mResultMap = resultMap;
-        mPromise = promise;
-        mMutex = mutex;
-        runOnUiThread (this);
+    /**
+     * Opens a pipe and starts the job's consumer on its read end.
+     *
+     * @return the write end, for the WebView
+     */
+    private ParcelFileDescriptor openPipe (final ConversionJob job) throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe ();
+        final InputStream input = new ParcelFileDescriptor.AutoCloseInputStream (pipe[0]);
+        job.mStreaming = true;
+        mStreamReaders.execute (new Runnable () {
+            @Override
+            public void run () {
+                Exception error = null;
+                try {
+                    job.getStreamConsumer ().consume (job, input);
+                } catch (Exception e) {
+                    error = e;
+                } finally {
+                    // makes the WebView's write fail if the consumer stopped early
+                    closeQuietly (input);
+                }
+                final Exception streamError = error;
+                mMainHandler.post (new Runnable () {
+                    @Override
+                    public void run () {
+                        onStreamFinished (job, streamError);
+                    }
+                });
+            }
+        });
+        return pipe[1];
     }
 
-    private ParcelFileDescriptor getOutputFileDescriptor () {
+    private ParcelFileDescriptor getOutputFileDescriptor (ConversionJob job) {
         try {
-            mPdfFile.createNewFile ();
-            return ParcelFileDescriptor.open (mPdfFile, ParcelFileDescriptor.MODE_TRUNCATE | ParcelFileDescriptor.MODE_READ_WRITE);
+            if (job.getStreamConsumer () != null)
+                return openPipe (job);
+            job.getPdfFile ().createNewFile ();
+            return ParcelFileDescriptor.open (job.getPdfFile (), ParcelFileDescriptor.MODE_TRUNCATE | ParcelFileDescriptor.MODE_READ_WRITE);
         } catch (Exception e) {
             Log.d (TAG, "Failed to open ParcelFileDescriptor", e);
         }
         return null;
     }
 
-    private PrintAttributes getDefaultPrintAttrs () {
+    static PrintAttributes getDefaultPrintAttrs () {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return null;
 
         return new PrintAttributes.Builder ()
@@ -165,27 +445,25 @@ public class PdfConverter implements Runnable {
 
     }
 
-    private void runOnUiThread (Runnable runnable) {
-        Handler handler = new Handler (mContext.getMainLooper ());
-        handler.post (runnable);
+    private static CancellationException newCancellationException () {
+        return new CancellationException ("RNHTMLtoPDF error: Conversion was cancelled.");
     }
 
-    private void destroy () {
-        mContext = null;
-        mHtmlString = null;
-        mPdfFile = null;
-        mPdfPrintAttrs = null;
-        mWebView = null;
-        mIsCurrentlyConverting = false;
-        mShouldEncode = false;
-        mResultMap = null;
-        mPromise = null;
+    private static void closeQuietly (ParcelFileDescriptor descriptor) {
+        if (descriptor == null)
+            return;
+        try {
+            descriptor.close ();
+        } catch (Exception e) {
+            Log.d (TAG, "Failed to close ParcelFileDescriptor", e);
+        }
     }
 
-    private String encodeFromFile (File file) throws IOException {
-        RandomAccessFile randomAccessFile = new RandomAccessFile (file, "r");
-        byte[] fileBytes = new byte[(int) randomAccessFile.length ()];
-        randomAccessFile.readFully (fileBytes);
-        return Base64.encodeToString (fileBytes, Base64.DEFAULT);
+    private static void closeQuietly (InputStream input) {
+        try {
+            input.close ();
+        } catch (Exception e) {
+            Log.d (TAG, "Failed to close pipe", e);
+        }
     }
 }
@@ -0,0 +1,88 @@
+package android.print;
+
+/**
+ * When a loaded page is ready to be printed.
+ * <p>
+ * {@code onPageFinished} fires before web fonts and images have necessarily arrived, so a
+ * job can additionally wait for {@link #FONTS}, {@link #IMAGES} and/or a {@link #SIGNAL}
+ * set by the page's own script. The page is polled until every condition holds and it has
+ * a non-zero content height. A page that is still empty is reloaded at most
+ * {@code maxReloads} times, after which the job fails. With a timeout, the job fails if it hasn't started printing
+ * {@code timeoutMs} after it started rendering, whether or not the page ever finished
+ * loading.
+ */
+public class Readiness {
+
+    /**
+     * {@code document.fonts} has finished loading.
+     */
+    public static final int FONTS = 1;
+    /**
+     * Every {@code <img>} has finished loading.
+     */
+    public static final int IMAGES = 1 << 1;
+    /**
+     * The page has set {@code window.RNHTMLtoPDFReady = true}.
+     */
+    public static final int SIGNAL = 1 << 2;
+
+    public static final String SIGNAL_VARIABLE = "RNHTMLtoPDFReady";
+    /**
+     * Wait as long as the page takes.
+     */
+    public static final long NO_TIMEOUT = 0;
+    /**
+     * The timeout of jobs that wait for a condition, unless they set their own.
+     */
+    public static final long DEFAULT_TIMEOUT_MS = 30000;
+    public static final int DEFAULT_MAX_RELOADS = 2;
+    static final long POLL_INTERVAL_MS = 50;
+
+    /**
+     * Print as soon as the page has loaded and has content, however long that takes.
+     */
+    public static final Readiness DEFAULT = new Readiness (0, NO_TIMEOUT, DEFAULT_MAX_RELOADS);
+
+    private final int mConditions;
+    private final long mTimeoutMs;
+    private final int mMaxReloads;
+
+    /**
+     * @param conditions a combination of {@link #FONTS}, {@link #IMAGES} and {@link #SIGNAL}
+     * @param timeoutMs  {@link #NO_TIMEOUT} to wait as long as the page takes
+     */
+    public Readiness (int conditions, long timeoutMs, int maxReloads) {
+        mConditions = conditions;
+        mTimeoutMs = Math.max (0, timeoutMs);
+        mMaxReloads = Math.max (0, maxReloads);
+    }
+
+    public int getConditions () {
+        return mConditions;
+    }
+
+    public long getTimeoutMs () {
+        return mTimeoutMs;
+    }
+
+    public int getMaxReloads () {
+        return mMaxReloads;
+    }
+
+    /**
+     * A script that evaluates to {@code true} once the conditions hold, or {@code null} if
+     * there are none to check.
+     */
+    String getScript () {
+        if (mConditions == 0)
+            return null;
+        StringBuilder script = new StringBuilder ("(function () { return document.readyState === 'complete'");
+        if ((mConditions & FONTS) != 0)
+            script.append (" && (!document.fonts || document.fonts.status === 'loaded')");
+        if ((mConditions & IMAGES) != 0)
+            script.append (" && Array.prototype.every.call (document.images, function (image) { return image.complete; })");
+        if ((mConditions & SIGNAL) != 0)
+            script.append (" && window.").append (SIGNAL_VARIABLE).append (" === true");
+        return script.append ("; }) ()").toString ();
+    }
+}
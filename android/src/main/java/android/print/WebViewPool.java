@@ -0,0 +1,201 @@
+package android.print;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.util.Log;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a bounded set of pre-configured WebViews so that conversions don't pay the
+ * WebView construction cost for every document.
+ * <p>
+ * Must only be used from the main thread. A released WebView only becomes idle once it has
+ * finished loading {@code about:blank}, so that the reset load never reports to the client
+ * of the next conversion. The pool shrinks itself when the system reports memory pressure.
+ */
+public class WebViewPool implements ComponentCallbacks2 {
+
+    private static final String TAG = "WebViewPool";
+    private static final String BLANK_URL = "about:blank";
+    public static final int DEFAULT_MAX_SIZE = 2;
+
+    private static WebViewPool sInstance;
+
+    private final ArrayDeque<WebView> mIdleWebViews = new ArrayDeque<> ();
+    private final AtomicInteger mHits = new AtomicInteger ();
+    private final AtomicInteger mMisses = new AtomicInteger ();
+    private volatile int mMaxSize = DEFAULT_MAX_SIZE;
+    private volatile int mIdleCount;
+    /**
+     * Released WebViews still loading {@link #BLANK_URL}.
+     */
+    private int mResettingCount;
+    private boolean mCallbacksRegistered;
+
+    private WebViewPool () {
+    }
+
+    public static synchronized WebViewPool getInstance () {
+        if (sInstance == null)
+            sInstance = new WebViewPool ();
+
+        return sInstance;
+    }
+
+    /**
+     * Returns an idle WebView from the pool, or creates a new one if the pool is empty.
+     */
+    public WebView acquire (Context context) {
+        registerCallbacks (context);
+        WebView webView = mIdleWebViews.pollFirst ();
+        mIdleCount = mIdleWebViews.size ();
+        if (webView != null) {
+            mHits.incrementAndGet ();
+            return webView;
+        }
+        mMisses.incrementAndGet ();
+        return createWebView (context);
+    }
+
+    /**
+     * Creates WebViews until {@code count} are idle, or the pool is full, so that the first
+     * conversions don't pay for loading the WebView implementation.
+     *
+     * @return the number of WebViews created
+     */
+    public int prewarm (Context context, int count) {
+        registerCallbacks (context);
+        int created = 0;
+        while (mIdleWebViews.size () + mResettingCount < Math.min (count, mMaxSize)) {
+            // loading about:blank starts the renderer process
+            reset (createWebView (context));
+            created++;
+        }
+        return created;
+    }
+
+    /**
+     * Resets the WebView and hands it back to the pool once the reset has loaded. WebViews
+     * that don't fit in the pool are destroyed.
+     */
+    public void release (WebView webView) {
+        if (webView == null)
+            return;
+
+        if (mIdleWebViews.size () + mResettingCount >= mMaxSize) {
+            webView.destroy ();
+            return;
+        }
+        reset (webView);
+    }
+
+    public void setMaxSize (int maxSize) {
+        mMaxSize = Math.max (0, maxSize);
+        trimTo (mMaxSize);
+    }
+
+    public int getMaxSize () {
+        return mMaxSize;
+    }
+
+    public int getHitCount () {
+        return mHits.get ();
+    }
+
+    public int getMissCount () {
+        return mMisses.get ();
+    }
+
+    public int getIdleCount () {
+        return mIdleCount;
+    }
+
+    /**
+     * Destroys idle WebViews until at most {@code size} remain.
+     */
+    public void trimTo (int size) {
+        while (mIdleWebViews.size () > size) {
+            mIdleWebViews.pollLast ().destroy ();
+        }
+        mIdleCount = mIdleWebViews.size ();
+    }
+
+    @Override
+    public void onTrimMemory (int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            Log.d (TAG, "onTrimMemory(" + level + "): clearing pool");
+            trimTo (0);
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            trimTo (mIdleWebViews.size () / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory () {
+        trimTo (0);
+    }
+
+    @Override
+    public void onConfigurationChanged (Configuration newConfig) {
+    }
+
+    private void registerCallbacks (Context context) {
+        if (mCallbacksRegistered)
+            return;
+
+        context.getApplicationContext ().registerComponentCallbacks (this);
+        mCallbacksRegistered = true;
+    }
+
+    private WebView createWebView (Context context) {
+        WebView webView = new WebView (context);
+        WebSettings settings = webView.getSettings ();
+        settings.setDefaultTextEncodingName ("utf-8");
+        settings.setAllowFileAccess (true);
+        settings.setAllowContentAccess (true);
+        settings.setAllowFileAccessFromFileURLs (true);
+        settings.setDomStorageEnabled (true);
+        settings.setAllowUniversalAccessFromFileURLs (true);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            webView.setRendererPriorityPolicy (WebView.RENDERER_PRIORITY_IMPORTANT, false);
+        }
+        return webView;
+    }
+
+    private void reset (final WebView webView) {
+        mResettingCount++;
+        webView.stopLoading ();
+        webView.setWebViewClient (new WebViewClient () {
+            private boolean mDone;
+
+            @Override
+            public void onPageFinished (WebView view, String url) {
+                // the page that was stopped may still report first
+                if (mDone || !BLANK_URL.equals (url))
+                    return;
+                mDone = true;
+                onReset (webView);
+            }
+        });
+        webView.loadUrl (BLANK_URL);
+        webView.clearHistory ();
+    }
+
+    private void onReset (WebView webView) {
+        mResettingCount--;
+        webView.setWebViewClient (new WebViewClient ());
+        if (mIdleWebViews.size () < mMaxSize) {
+            mIdleWebViews.addLast (webView);
+            mIdleCount = mIdleWebViews.size ();
+        } else {
+            webView.destroy ();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.christopherdro.htmltopdf;
+
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+import com.tom_roush.pdfbox.pdmodel.PDPage;
+import com.tom_roush.pdfbox.text.PDFTextStripper;
+import com.tom_roush.pdfbox.text.TextPosition;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the pages of the {@code __TOC_ANCHOR__:name} markers of a document in a single pass.
+ * <p>
+ * The text of every page is collected as the text stripper emits it and searched once the
+ * page is done, so the document is walked once no matter how many anchors it contains.
+ * Wanted anchors are matched against the page text, so their names may contain spaces;
+ * when indexing every marker, a name ends at the first whitespace. For every anchor the
+ * first page it appears on is kept.
+ */
+class AnchorExtractor extends PDFTextStripper {
+
+    static final String ANCHOR_PREFIX = "__TOC_ANCHOR__:";
+
+    static final class Anchor {
+        final String name;
+        final int page;
+        /**
+         * Position of the marker on the page, in points from the top left corner.
+         */
+        final float x;
+        final float y;
+
+        Anchor (String name, int page, float x, float y) {
+            this.name = name;
+            this.page = page;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private static final Writer NULL_WRITER = new Writer () {
+        @Override
+        public void write (char[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void flush () {
+        }
+
+        @Override
+        public void close () {
+        }
+    };
+
+    private final Set<String> mWantedAnchors;
+    private final Map<String, Anchor> mAnchors = new LinkedHashMap<> ();
+    private final StringBuilder mPageText = new StringBuilder ();
+    /**
+     * The position of every character of {@link #mPageText}, {@code null} for separators.
+     */
+    private final List<TextPosition> mPagePositions = new ArrayList<> ();
+
+    /**
+     * @param wantedAnchors the anchors to look for, or {@code null} to index every marker.
+     *                      A wanted anchor also matches a marker it is a prefix of, the way
+     *                      the page-by-page text search used to match.
+     */
+    AnchorExtractor (Set<String> wantedAnchors) throws IOException {
+        mWantedAnchors = wantedAnchors;
+    }
+
+    /**
+     * Indexes the anchors found between {@code startPage} and {@code endPage} (1-based, inclusive).
+     */
+    Map<String, Anchor> extract (PDDocument document, int startPage, int endPage) throws IOException {
+        mAnchors.clear ();
+        setStartPage (startPage);
+        setEndPage (endPage);
+        writeText (document, NULL_WRITER);
+        return mAnchors;
+    }
+
+    Map<String, Anchor> extract (PDDocument document) throws IOException {
+        return extract (document, 1, document.getNumberOfPages ());
+    }
+
+    @Override
+    public void processPage (PDPage page) throws IOException {
+        if (mWantedAnchors != null && mAnchors.size () >= mWantedAnchors.size ())
+            return;
+        super.processPage (page);
+    }
+
+    @Override
+    protected void startPage (PDPage page) throws IOException {
+        super.startPage (page);
+        mPageText.setLength (0);
+        mPagePositions.clear ();
+    }
+
+    @Override
+    protected void writeString (String text, List<TextPosition> textPositions) throws IOException {
+        super.writeString (text, textPositions);
+        boolean oneEach = textPositions.size () == text.length ();
+        for (int i = 0; i < text.length (); i++) {
+            mPagePositions.add (oneEach ? textPositions.get (i) : textPositions.isEmpty () ? null : textPositions.get (0));
+        }
+        mPageText.append (text);
+    }
+
+    @Override
+    protected void writeWordSeparator () throws IOException {
+        super.writeWordSeparator ();
+        appendSeparator (getWordSeparator ());
+    }
+
+    @Override
+    protected void writeLineSeparator () throws IOException {
+        super.writeLineSeparator ();
+        appendSeparator (getLineSeparator ());
+    }
+
+    @Override
+    protected void endPage (PDPage page) throws IOException {
+        super.endPage (page);
+        findAnchors ();
+    }
+
+    private void appendSeparator (String separator) {
+        for (int i = 0; i < separator.length (); i++) {
+            mPagePositions.add (null);
+        }
+        mPageText.append (separator);
+    }
+
+    private void findAnchors () {
+        String text = mPageText.toString ();
+        int index = text.indexOf (ANCHOR_PREFIX);
+        while (index >= 0) {
+            int start = index + ANCHOR_PREFIX.length ();
+            TextPosition position = mPagePositions.get (index);
+            if (mWantedAnchors == null) {
+                int end = start;
+                while (end < text.length () && !Character.isWhitespace (text.charAt (end)))
+                    end++;
+                addAnchor (text.substring (start, end), position);
+            } else {
+                for (String name : mWantedAnchors) {
+                    if (text.startsWith (name, start))
+                        addAnchor (name, position);
+                }
+            }
+            index = text.indexOf (ANCHOR_PREFIX, start);
+        }
+    }
+
+    private void addAnchor (String name, TextPosition position) {
+        if (name.isEmpty () || mAnchors.containsKey (name))
+            return;
+
+        float x = position != null ? position.getXDirAdj () : 0;
+        float y = position != null ? position.getYDirAdj () : 0;
+        mAnchors.put (name, new Anchor (name, getCurrentPageNo (), x, y));
+    }
+}
@@ -0,0 +1,86 @@
+package com.christopherdro.htmltopdf;
+
+import android.util.Base64;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**
+ * Base64 encodes a file a fixed-size chunk at a time, so that the file is never held in a
+ * single byte array.
+ * <p>
+ * Chunks are a multiple of 3 bytes long, except the one at the end of the file, so the
+ * encoded chunks of consecutive ranges concatenate to the encoding of the whole file.
+ */
+class Base64Reader {
+
+    static final int DEFAULT_CHUNK_BYTES = 3 * 256 * 1024;
+    private static final Charset US_ASCII = Charset.forName ("US-ASCII");
+
+    private Base64Reader () {
+    }
+
+    /**
+     * Encodes up to {@code length} bytes of {@code file} from {@code offset}. Unless the
+     * range reaches the end of the file, {@code length} is rounded down to a multiple of 3
+     * (and at least 3), so every call but the last makes progress.
+     */
+    static Chunk readRange (File file, long offset, int length) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile (file, "r")) {
+            long size = input.length ();
+            if (offset < 0 || offset > size)
+                throw new IOException ("RNHTMLtoPDF error: Invalid offset " + offset + " for a file of " + size + " bytes.");
+            int count = (int) Math.min (Math.max (3, length), size - offset);
+            if (offset + count < size)
+                count -= count % 3;
+            byte[] buffer = new byte[count];
+            input.seek (offset);
+            input.readFully (buffer);
+            return new Chunk (Base64.encodeToString (buffer, Base64.NO_WRAP), count, size);
+        }
+    }
+
+    /**
+     * Encodes the whole file into one String. The file is read a chunk at a time and
+     * encoded into a single ASCII byte array that the String is built from, so besides the
+     * String only that array, about 4/3 of the file size, is held at once. Large files are
+     * better read with {@link #readRange}.
+     */
+    static String encode (File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile (file, "r")) {
+            long size = input.length ();
+            long encodedSize = (size + 2) / 3 * 4;
+            if (encodedSize > Integer.MAX_VALUE)
+                throw new IOException ("RNHTMLtoPDF error: " + file + " is too large to encode at once.");
+            byte[] encoded = new byte[(int) encodedSize];
+            byte[] buffer = new byte[(int) Math.min (DEFAULT_CHUNK_BYTES, size)];
+            long remaining = size;
+            int position = 0;
+            while (remaining > 0) {
+                int count = (int) Math.min (buffer.length, remaining);
+                input.readFully (buffer, 0, count);
+                // chunks are a multiple of 3 bytes, so their encodings have no padding in between
+                byte[] chunk = Base64.encode (buffer, 0, count, Base64.NO_WRAP);
+                System.arraycopy (chunk, 0, encoded, position, chunk.length);
+                position += chunk.length;
+                remaining -= count;
+            }
+            return new String (encoded, US_ASCII);
+        }
+    }
+
+    static final class Chunk {
+
+        final String base64;
+        final int bytesRead;
+        final long size;
+
+        Chunk (String base64, int bytesRead, long size) {
+            this.base64 = base64;
+            this.bytesRead = bytesRead;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.christopherdro.htmltopdf;
+
+import android.os.SystemClock;
+import android.print.ConversionJob;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timings and sizes of a single module call.
+ * <p>
+ * Stage times are summed over every time the stage ran, so a merge of ten sections reports
+ * the total WebView layout time of all ten. Temp file usage covers the intermediate PDFs the
+ * module writes (rendered sections, TOC and body), not PDFBox scratch files.
+ */
+class ConversionMetrics {
+
+    static final String QUEUE = "queue";
+    static final String LAYOUT = "layout";
+    static final String READY = "ready";
+    static final String WRITE = "write";
+    static final String LOAD = "load";
+    static final String ANCHORS = "anchors";
+    static final String MERGE = "merge";
+    static final String DEDUPE = "dedupe";
+    static final String STAMP = "stamp";
+    static final String SAVE = "save";
+    static final String THUMBNAIL = "thumbnail";
+    static final String TOTAL = "total";
+
+    private final long mStartedAt = now ();
+    private final Map<String, Long> mStageTimesMs = new LinkedHashMap<> ();
+    private int mRenderCount;
+    private int mReloadCount;
+    private int mPageCount;
+    private long mBytesWritten;
+    private long mTempBytes;
+    private long mPeakTempBytes;
+    private int mDedupedObjects;
+    private long mDedupedBytes;
+
+    static long now () {
+        return SystemClock.elapsedRealtime ();
+    }
+
+    synchronized void addStageTime (String stage, long timeMs) {
+        Long total = mStageTimesMs.get (stage);
+        mStageTimesMs.put (stage, (total != null ? total : 0) + timeMs);
+    }
+
+    /**
+     * Adds the time from {@code startedAt}, a {@link #now()} value, until now.
+     */
+    void addStageTimeSince (String stage, long startedAt) {
+        addStageTime (stage, now () - startedAt);
+    }
+
+    /**
+     * Adds the queue, layout, readiness and write times of a finished WebView job.
+     */
+    synchronized void addRender (ConversionJob job) {
+        mRenderCount++;
+        mReloadCount += job.getReloadCount ();
+        addStageTime (QUEUE, job.getQueueTimeMs ());
+        addStageTime (LAYOUT, job.getLayoutTimeMs ());
+        addStageTime (READY, job.getReadyTimeMs ());
+        addStageTime (WRITE, job.getWriteTimeMs ());
+    }
+
+    synchronized void addTempFile (long bytes) {
+        mTempBytes += bytes;
+        mPeakTempBytes = Math.max (mPeakTempBytes, mTempBytes);
+    }
+
+    synchronized void removeTempFile (long bytes) {
+        mTempBytes = Math.max (0, mTempBytes - bytes);
+    }
+
+    synchronized void setDeduplicated (int objects, long bytes) {
+        mDedupedObjects = objects;
+        mDedupedBytes = bytes;
+    }
+
+    synchronized void setOutput (int pageCount, long bytesWritten) {
+        mPageCount = pageCount;
+        mBytesWritten = bytesWritten;
+    }
+
+    /**
+     * Records the total time of the call. Called once, when it has a result.
+     */
+    synchronized void finish () {
+        mStageTimesMs.put (TOTAL, now () - mStartedAt);
+    }
+
+    synchronized Map<String, Long> getStageTimesMs () {
+        return new LinkedHashMap<> (mStageTimesMs);
+    }
+
+    synchronized int getRenderCount () {
+        return mRenderCount;
+    }
+
+    synchronized int getReloadCount () {
+        return mReloadCount;
+    }
+
+    synchronized int getPageCount () {
+        return mPageCount;
+    }
+
+    synchronized long getBytesWritten () {
+        return mBytesWritten;
+    }
+
+    synchronized long getPeakTempBytes () {
+        return mPeakTempBytes;
+    }
+
+    synchronized int getDedupedObjects () {
+        return mDedupedObjects;
+    }
+
+    synchronized long getDedupedBytes () {
+        return mDedupedBytes;
+    }
+}
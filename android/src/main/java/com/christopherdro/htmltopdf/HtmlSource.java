@@ -0,0 +1,75 @@
+package com.christopherdro.htmltopdf;
+
+import android.content.Context;
+import android.net.Uri;
+import android.print.ConversionJob;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The HTML of a conversion: either markup passed over the bridge, or a local file path or
+ * {@code content://} URI that the WebView loads itself. URI sources are never read into a
+ * String; only their cache key streams over the content.
+ */
+class HtmlSource {
+
+    private static final String FILE_SCHEME = "file";
+    private static final String CONTENT_SCHEME = "content";
+
+    private final String mHtml;
+    private final String mUrl;
+
+    private HtmlSource (String html, String url) {
+        mHtml = html;
+        mUrl = url;
+    }
+
+    static HtmlSource fromHtml (String html) {
+        return new HtmlSource (html, null);
+    }
+
+    /**
+     * @param uri an absolute file path, a {@code file://} URL or a {@code content://} URI
+     */
+    static HtmlSource fromUri (String uri) throws Exception {
+        if (uri == null || uri.isEmpty ())
+            throw new Exception ("RNHTMLtoPDF error: Invalid htmlUri parameter.");
+        if (uri.startsWith ("/"))
+            return new HtmlSource (null, Uri.fromFile (new File (uri)).toString ());
+        String scheme = Uri.parse (uri).getScheme ();
+        if (!FILE_SCHEME.equals (scheme) && !CONTENT_SCHEME.equals (scheme))
+            throw new Exception ("RNHTMLtoPDF error: Unsupported htmlUri " + uri);
+        return new HtmlSource (null, uri);
+    }
+
+    ConversionJob newJob (File pdfFile) {
+        return mUrl != null ? ConversionJob.forUrl (mUrl, pdfFile) : new ConversionJob (mHtml, pdfFile);
+    }
+
+    /**
+     * Identifies the content for cache keys. For URIs this is the URI plus a hash of the
+     * bytes it points to, so an edited file doesn't hit a stale entry. Does I/O for URIs.
+     */
+    String getCacheKey (Context context) throws IOException {
+        if (mUrl == null)
+            return mHtml;
+        try (InputStream in = context.getContentResolver ().openInputStream (Uri.parse (mUrl))) {
+            if (in == null)
+                throw new FileNotFoundException ("RNHTMLtoPDF error: Could not open " + mUrl);
+            MessageDigest digest = MessageDigest.getInstance ("SHA-256");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read (buffer)) != -1) {
+                digest.update (buffer, 0, read);
+            }
+            return "uri:" + mUrl + "|" + PdfRenderCache.toHex (digest.digest ());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException (e);
+        }
+    }
+}
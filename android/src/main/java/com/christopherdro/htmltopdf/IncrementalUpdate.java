@@ -0,0 +1,123 @@
+package com.christopherdro.htmltopdf;
+
+import com.tom_roush.pdfbox.cos.COSBase;
+import com.tom_roush.pdfbox.cos.COSDictionary;
+import com.tom_roush.pdfbox.cos.COSName;
+import com.tom_roush.pdfbox.cos.COSObject;
+import com.tom_roush.pdfbox.cos.COSUpdateInfo;
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+import com.tom_roush.pdfbox.pdmodel.PDPage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the stamps added by {@link PageStamper} as a PDF incremental update.
+ * <p>
+ * The bytes the WebView produced stay untouched: only the changed page dictionaries and
+ * the new content streams, fonts and forms are appended to the end of the file, followed
+ * by a new cross-reference section.
+ */
+class IncrementalUpdate {
+
+    private IncrementalUpdate () {
+    }
+
+    /**
+     * Appends the changes made to {@code document} to {@code sourceFile}, which must be the
+     * file the document was loaded from.
+     *
+     * @return the number of bytes appended
+     */
+    static long append (PDDocument document, File sourceFile) throws IOException {
+        markStampedPages (document);
+        long originalLength = sourceFile.length ();
+        try (AppendingOutputStream output = new AppendingOutputStream (sourceFile, originalLength)) {
+            // PDFBox copies the original bytes before it writes the update, so they can be skipped
+            document.saveIncremental (output);
+            return output.getAppendedBytes ();
+        }
+    }
+
+    /**
+     * Flags every object on the path from the catalog to the stamped pages, so PDFBox
+     * writes them into the update.
+     */
+    private static void markStampedPages (PDDocument document) {
+        markForUpdate (document.getDocumentCatalog ().getCOSObject ());
+        for (PDPage page : document.getPages ()) {
+            COSDictionary pageDict = page.getCOSObject ();
+            markForUpdate (pageDict);
+            markForUpdate (pageDict.getDictionaryObject (COSName.CONTENTS));
+
+            COSBase resources = pageDict.getDictionaryObject (COSName.RESOURCES);
+            markForUpdate (resources);
+            if (resources instanceof COSDictionary) {
+                markForUpdate (((COSDictionary) resources).getDictionaryObject (COSName.FONT));
+                markForUpdate (((COSDictionary) resources).getDictionaryObject (COSName.XOBJECT));
+            }
+
+            COSBase parent = pageDict.getDictionaryObject (COSName.PARENT);
+            while (parent instanceof COSDictionary && !((COSDictionary) parent).isNeedToBeUpdated ()) {
+                markForUpdate (parent);
+                parent = ((COSDictionary) parent).getDictionaryObject (COSName.PARENT);
+            }
+        }
+    }
+
+    private static void markForUpdate (COSBase object) {
+        if (object instanceof COSObject)
+            object = ((COSObject) object).getObject ();
+        if (object instanceof COSUpdateInfo)
+            ((COSUpdateInfo) object).setNeedToBeUpdated (true);
+    }
+
+    /**
+     * Discards the first {@code skip} bytes written to it and appends the rest to a file.
+     */
+    private static final class AppendingOutputStream extends OutputStream {
+
+        private final File mFile;
+        private long mSkip;
+        private long mAppended;
+        private FileOutputStream mOutput;
+
+        AppendingOutputStream (File file, long skip) {
+            mFile = file;
+            mSkip = skip;
+        }
+
+        long getAppendedBytes () {
+            return mAppended;
+        }
+
+        @Override
+        public void write (int b) throws IOException {
+            write (new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len) throws IOException {
+            if (mSkip > 0) {
+                int skipped = (int) Math.min (mSkip, len);
+                mSkip -= skipped;
+                off += skipped;
+                len -= skipped;
+            }
+            if (len == 0)
+                return;
+            if (mOutput == null)
+                mOutput = new FileOutputStream (mFile, true);
+            mOutput.write (b, off, len);
+            mAppended += len;
+        }
+
+        @Override
+        public void close () throws IOException {
+            if (mOutput != null)
+                mOutput.close ();
+        }
+    }
+}
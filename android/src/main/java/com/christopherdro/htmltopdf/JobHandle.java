@@ -0,0 +1,139 @@
+package com.christopherdro.htmltopdf;
+
+import android.print.ConversionJob;
+import android.print.PageRange;
+import android.print.PdfConverter;
+import android.print.Readiness;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Everything a single module call has in flight, so that it can be cancelled as a whole.
+ * <p>
+ * The WebView jobs of the call are tracked while they are queued or rendering. Cancelling
+ * cancels those jobs and runs the registered hooks; the steps that run on the worker
+ * executor check {@link #throwIfCancelled()} before they start. The handle also carries
+ * the {@link ConversionMetrics} of the call, and the assets, {@link Readiness} and page
+ * ranges of its WebView jobs.
+ */
+class JobHandle {
+
+    private final String mId;
+    private final Set<ConversionJob> mJobs = new LinkedHashSet<> ();
+    private final List<Runnable> mCancelHooks = new ArrayList<> ();
+    private final ConversionMetrics mMetrics = new ConversionMetrics ();
+    private volatile Map<String, String> mAssets;
+    private volatile Readiness mReadiness = Readiness.DEFAULT;
+    private volatile PageRange[] mPages;
+    private boolean mCancelled;
+
+    /**
+     * @param id the {@code jobId} the caller chose, or {@code null}
+     */
+    JobHandle (String id) {
+        mId = id;
+    }
+
+    String getId () {
+        return mId;
+    }
+
+    ConversionMetrics getMetrics () {
+        return mMetrics;
+    }
+
+    Map<String, String> getAssets () {
+        return mAssets;
+    }
+
+    void setAssets (Map<String, String> assets) {
+        mAssets = assets;
+    }
+
+    Readiness getReadiness () {
+        return mReadiness;
+    }
+
+    void setReadiness (Readiness readiness) {
+        mReadiness = readiness;
+    }
+
+    /**
+     * The pages to write, or {@code null} for all of them.
+     */
+    PageRange[] getPages () {
+        return mPages;
+    }
+
+    void setPages (PageRange[] pages) {
+        mPages = pages;
+    }
+
+    synchronized boolean isCancelled () {
+        return mCancelled;
+    }
+
+    void throwIfCancelled () {
+        if (isCancelled ())
+            throw newCancellationException ();
+    }
+
+    /**
+     * Tracks a job that is about to be submitted. Fails if the handle is already cancelled.
+     */
+    synchronized void track (ConversionJob job) {
+        if (mCancelled)
+            throw newCancellationException ();
+        mJobs.add (job);
+    }
+
+    synchronized void untrack (ConversionJob job) {
+        mJobs.remove (job);
+    }
+
+    /**
+     * Runs {@code hook} when the handle is cancelled, or right away if it already is.
+     */
+    void addCancelHook (Runnable hook) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mCancelHooks.add (hook);
+                return;
+            }
+        }
+        hook.run ();
+    }
+
+    /**
+     * @return whether this call cancelled the handle
+     */
+    boolean cancel () {
+        List<ConversionJob> jobs;
+        List<Runnable> hooks;
+        synchronized (this) {
+            if (mCancelled)
+                return false;
+            mCancelled = true;
+            jobs = new ArrayList<> (mJobs);
+            hooks = new ArrayList<> (mCancelHooks);
+            mJobs.clear ();
+            mCancelHooks.clear ();
+        }
+        for (ConversionJob job : jobs) {
+            PdfConverter.getInstance ().cancel (job);
+        }
+        for (Runnable hook : hooks) {
+            hook.run ();
+        }
+        return true;
+    }
+
+    static CancellationException newCancellationException () {
+        return new CancellationException ("RNHTMLtoPDF error: Conversion was cancelled.");
+    }
+}
@@ -0,0 +1,67 @@
+package com.christopherdro.htmltopdf;
+
+import com.tom_roush.pdfbox.io.MemoryUsageSetting;
+
+/**
+ * Chooses how much main memory PDFBox may buffer for a document before it spills to temp
+ * files.
+ * <p>
+ * By default the cap follows the size of the input, within a share of the heap that is
+ * still free: small documents stay in memory, large ones use a bounded buffer and the
+ * rest goes to disk. Callers can override this with an explicit byte cap, where 0 means
+ * temp files only.
+ */
+class MemoryPolicy {
+
+    /**
+     * Let the policy choose the cap.
+     */
+    static final long AUTO = -1;
+    /**
+     * Main memory a document may take relative to its file size. Parsed streams and the
+     * objects appended while merging take more room than their compressed bytes on disk.
+     */
+    static final int INPUT_FACTOR = 2;
+    /**
+     * Part of the free heap a single document may take, leaving room for the document that
+     * is merged into it and for the rest of the app.
+     */
+    static final int HEAP_SHARE = 4;
+    /**
+     * Below this much room, buffering in memory isn't worth it and everything goes to disk.
+     */
+    static final long MIN_MAIN_MEMORY = 1024 * 1024;
+
+    private MemoryPolicy () {
+    }
+
+    /**
+     * @param inputBytes     size of the document to load, or 0 if not known yet
+     * @param maxMemoryBytes the cap the caller asked for, or {@link #AUTO}
+     * @return the main memory cap in bytes, 0 for temp files only
+     */
+    static long getMaxMainMemory (long inputBytes, long maxMemoryBytes) {
+        if (maxMemoryBytes != AUTO)
+            return Math.max (0, maxMemoryBytes);
+        long budget = getFreeHeap () / HEAP_SHARE;
+        if (budget < MIN_MAIN_MEMORY)
+            return 0;
+        long wanted = inputBytes > 0 ? Math.max (MIN_MAIN_MEMORY, inputBytes * INPUT_FACTOR) : budget;
+        return Math.min (wanted, budget);
+    }
+
+    static MemoryUsageSetting choose (long inputBytes, long maxMemoryBytes) {
+        long maxMainMemory = getMaxMainMemory (inputBytes, maxMemoryBytes);
+        return maxMainMemory > 0
+                ? MemoryUsageSetting.setupMixed (maxMainMemory)
+                : MemoryUsageSetting.setupTempFileOnly ();
+    }
+
+    /**
+     * Heap that can still be allocated, including what the heap may grow by.
+     */
+    static long getFreeHeap () {
+        Runtime runtime = Runtime.getRuntime ();
+        return runtime.maxMemory () - (runtime.totalMemory () - runtime.freeMemory ());
+    }
+}
@@ -0,0 +1,146 @@
+package com.christopherdro.htmltopdf;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Aggregates the {@link ConversionMetrics} of finished calls into fixed-bucket histograms,
+ * one per stage plus one each for page count, bytes written and peak temp file usage.
+ * Memory use is constant no matter how many calls are recorded.
+ */
+class MetricsRegistry {
+
+    static final String PAGES = "pages";
+    static final String BYTES_WRITTEN = "bytesWritten";
+    static final String PEAK_TEMP_BYTES = "peakTempBytes";
+
+    /**
+     * Upper bounds of the time buckets, in milliseconds.
+     */
+    private static final long[] TIME_BUCKETS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000
+    };
+    private static final long[] PAGE_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+    private static final long[] BYTE_BUCKETS = {
+            16L << 10, 64L << 10, 256L << 10, 1L << 20, 4L << 20, 16L << 20, 64L << 20, 256L << 20
+    };
+
+    private final Map<String, Histogram> mStages = new LinkedHashMap<> ();
+    private Histogram mPages = new Histogram (PAGE_BUCKETS);
+    private Histogram mBytesWritten = new Histogram (BYTE_BUCKETS);
+    private Histogram mPeakTempBytes = new Histogram (BYTE_BUCKETS);
+    private int mSucceeded;
+    private int mFailed;
+
+    synchronized void recordSuccess (ConversionMetrics metrics) {
+        mSucceeded++;
+        for (Map.Entry<String, Long> stage : metrics.getStageTimesMs ().entrySet ()) {
+            Histogram histogram = mStages.get (stage.getKey ());
+            if (histogram == null) {
+                histogram = new Histogram (TIME_BUCKETS);
+                mStages.put (stage.getKey (), histogram);
+            }
+            histogram.add (stage.getValue ());
+        }
+        mPages.add (metrics.getPageCount ());
+        mBytesWritten.add (metrics.getBytesWritten ());
+        mPeakTempBytes.add (metrics.getPeakTempBytes ());
+    }
+
+    synchronized void recordFailure () {
+        mFailed++;
+    }
+
+    synchronized int getSucceeded () {
+        return mSucceeded;
+    }
+
+    synchronized int getFailed () {
+        return mFailed;
+    }
+
+    /**
+     * Copies of the stage histograms, in the order the stages were first seen.
+     */
+    synchronized Map<String, Histogram> getStages () {
+        Map<String, Histogram> stages = new LinkedHashMap<> ();
+        for (Map.Entry<String, Histogram> stage : mStages.entrySet ()) {
+            stages.put (stage.getKey (), stage.getValue ().copy ());
+        }
+        return stages;
+    }
+
+    /**
+     * Copies of the page count, bytes written and peak temp usage histograms.
+     */
+    synchronized Map<String, Histogram> getSizes () {
+        Map<String, Histogram> sizes = new LinkedHashMap<> ();
+        sizes.put (PAGES, mPages.copy ());
+        sizes.put (BYTES_WRITTEN, mBytesWritten.copy ());
+        sizes.put (PEAK_TEMP_BYTES, mPeakTempBytes.copy ());
+        return sizes;
+    }
+
+    synchronized void reset () {
+        mStages.clear ();
+        mPages = new Histogram (PAGE_BUCKETS);
+        mBytesWritten = new Histogram (BYTE_BUCKETS);
+        mPeakTempBytes = new Histogram (BYTE_BUCKETS);
+        mSucceeded = 0;
+        mFailed = 0;
+    }
+
+    /**
+     * Counts values into buckets with fixed upper bounds, plus an overflow bucket.
+     * Percentiles are estimated as the upper bound of the bucket they fall in, capped at the
+     * largest value seen.
+     */
+    static final class Histogram {
+
+        final long[] bounds;
+        final long[] counts;
+        long count;
+        long sum;
+        long min = Long.MAX_VALUE;
+        long max;
+
+        Histogram (long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new long[bounds.length + 1];
+        }
+
+        void add (long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket])
+                bucket++;
+            counts[bucket]++;
+            count++;
+            sum += value;
+            min = Math.min (min, value);
+            max = Math.max (max, value);
+        }
+
+        long percentile (double fraction) {
+            if (count == 0)
+                return 0;
+            long rank = (long) Math.ceil (fraction * count);
+            long seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min (bounds[i], max);
+            }
+            return max;
+        }
+
+        Histogram copy () {
+            Histogram copy = new Histogram (bounds);
+            System.arraycopy (counts, 0, copy.counts, 0, counts.length);
+            copy.count = count;
+            copy.sum = sum;
+            copy.min = min;
+            copy.max = max;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.christopherdro.htmltopdf;
+
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+import com.tom_roush.pdfbox.pdmodel.PDFormContentStream;
+import com.tom_roush.pdfbox.pdmodel.PDPage;
+import com.tom_roush.pdfbox.pdmodel.PDPageContentStream;
+import com.tom_roush.pdfbox.pdmodel.PDResources;
+import com.tom_roush.pdfbox.pdmodel.common.PDRectangle;
+import com.tom_roush.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import com.tom_roush.pdfbox.util.Matrix;
+
+import java.io.IOException;
+
+/**
+ * Adds the page number footer and the optional watermark to every page of a document.
+ * <p>
+ * Everything that is the same on every page (the watermark and the text following the
+ * page number, e.g. " of 120") is drawn once into a shared Form XObject. Each page's
+ * content stream then only carries its own page number and references to those forms.
+ */
+class PageStamper {
+
+    private static final String PAGE_PLACEHOLDER = "{page}";
+    private static final String TOTAL_PLACEHOLDER = "{total}";
+
+    private final StampLayout mLayout;
+
+    PageStamper (StampLayout layout) {
+        mLayout = layout;
+    }
+
+    void stamp (PDDocument document, boolean watermark) throws IOException {
+        if (document == null || document.getNumberOfPages () == 0) {
+            return;
+        }
+
+        int totalPages = document.getNumberOfPages ();
+        String template = mLayout.template.replace (TOTAL_PLACEHOLDER, String.valueOf (totalPages));
+        int pageIndex = template.indexOf (PAGE_PLACEHOLDER);
+        boolean hasPageNumber = pageIndex >= 0;
+        String prefix = hasPageNumber ? template.substring (0, pageIndex) : "";
+        String suffix = hasPageNumber ? template.substring (pageIndex + PAGE_PLACEHOLDER.length ()) : template;
+
+        PDFormXObject suffixForm = suffix.isEmpty () ? null : createTextForm (document, suffix);
+        PDFormXObject watermarkForm = watermark ? createTextForm (document, mLayout.watermarkText) : null;
+        float watermarkWidth = watermark ? getTextWidth (mLayout.watermarkText) : 0;
+
+        StringBuilder pageNumberBuilder = new StringBuilder ();
+        for (int i = 0; i < totalPages; i++) {
+            PDPage page = document.getPage (i);
+
+            try (PDPageContentStream contentStream = new PDPageContentStream (document, page,
+                    PDPageContentStream.AppendMode.APPEND, true, true)) {
+
+                float suffixX = mLayout.x;
+                if (hasPageNumber) {
+                    pageNumberBuilder.setLength (0);
+                    pageNumberBuilder.append (prefix).append (i + 1);
+                    String pageNumber = pageNumberBuilder.toString ();
+
+                    contentStream.setFont (mLayout.font, mLayout.fontSize);
+                    contentStream.setNonStrokingColor (mLayout.red, mLayout.green, mLayout.blue);
+                    contentStream.beginText ();
+                    contentStream.newLineAtOffset (mLayout.x, mLayout.y);
+                    contentStream.showText (pageNumber);
+                    contentStream.endText ();
+                    suffixX += getTextWidth (pageNumber);
+                }
+
+                if (suffixForm != null) {
+                    drawForm (contentStream, suffixForm, suffixX, mLayout.y);
+                }
+
+                if (watermarkForm != null) {
+                    float watermarkX = page.getMediaBox ().getWidth () - watermarkWidth - mLayout.watermarkMargin;
+                    drawForm (contentStream, watermarkForm, watermarkX, mLayout.y);
+                }
+            }
+        }
+    }
+
+    private PDFormXObject createTextForm (PDDocument document, String text) throws IOException {
+        float descent = mLayout.font.getFontDescriptor () != null
+                ? mLayout.font.getFontDescriptor ().getDescent () / 1000 * mLayout.fontSize
+                : 0;
+        PDFormXObject form = new PDFormXObject (document);
+        form.setResources (new PDResources ());
+        form.setBBox (new PDRectangle (0, descent, getTextWidth (text), mLayout.fontSize - descent));
+
+        try (PDFormContentStream contentStream = new PDFormContentStream (form)) {
+            contentStream.setFont (mLayout.font, mLayout.fontSize);
+            contentStream.setNonStrokingColor (mLayout.red, mLayout.green, mLayout.blue);
+            contentStream.beginText ();
+            contentStream.showText (text);
+            contentStream.endText ();
+        }
+        return form;
+    }
+
+    private static void drawForm (PDPageContentStream contentStream, PDFormXObject form, float x, float y)
+            throws IOException {
+        contentStream.saveGraphicsState ();
+        contentStream.transform (Matrix.getTranslateInstance (x, y));
+        contentStream.drawForm (form);
+        contentStream.restoreGraphicsState ();
+    }
+
+    private float getTextWidth (String text) throws IOException {
+        return mLayout.font.getStringWidth (text) / 1000 * mLayout.fontSize;
+    }
+}
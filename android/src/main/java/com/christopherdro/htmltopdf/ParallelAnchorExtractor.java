@@ -0,0 +1,119 @@
+package com.christopherdro.htmltopdf;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import com.tom_roush.pdfbox.io.MemoryUsageSetting;
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Runs {@link AnchorExtractor} over page ranges of a document on a fork-join pool.
+ * <p>
+ * PDFBox documents are not thread-safe, so every range is extracted from its own
+ * {@link PDDocument} instance. The per-range indexes are merged in page order, keeping the
+ * first page of every anchor, so the result is the same as a sequential extraction.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class ParallelAnchorExtractor {
+
+    /**
+     * Ranges smaller than this are not worth loading another document for.
+     */
+    static final int MIN_PAGES_PER_RANGE = 32;
+    /**
+     * Least amount of main memory each worker gets when a memory ceiling is set.
+     */
+    static final long MIN_MEMORY_PER_WORKER = 8 * 1024 * 1024;
+
+    private final int mParallelism;
+    private final long mMaxMemoryBytes;
+
+    /**
+     * @param parallelism    the number of documents to extract from at the same time
+     * @param maxMemoryBytes main memory PDFBox may use across all workers, or 0 to buffer
+     *                       everything in temp files
+     */
+    ParallelAnchorExtractor (int parallelism, long maxMemoryBytes) {
+        mParallelism = Math.max (1, parallelism);
+        mMaxMemoryBytes = Math.max (0, maxMemoryBytes);
+    }
+
+    Map<String, AnchorExtractor.Anchor> extract (File file, Set<String> wantedAnchors) throws IOException {
+        int pageCount;
+        try (PDDocument document = PDDocument.load (file, MemoryUsageSetting.setupTempFileOnly ())) {
+            pageCount = document.getNumberOfPages ();
+        }
+
+        int workers = Math.min (mParallelism, Math.max (1, pageCount / MIN_PAGES_PER_RANGE));
+        if (mMaxMemoryBytes > 0)
+            workers = (int) Math.min (workers, Math.max (1, mMaxMemoryBytes / MIN_MEMORY_PER_WORKER));
+        MemoryUsageSetting memSettings = mMaxMemoryBytes > 0
+                ? MemoryUsageSetting.setupMixed (mMaxMemoryBytes / workers)
+                : MemoryUsageSetting.setupTempFileOnly ();
+        int rangeSize = (pageCount + workers - 1) / workers;
+
+        ForkJoinPool pool = new ForkJoinPool (workers);
+        try {
+            return pool.invoke (new RangeTask (file, wantedAnchors, memSettings, 1, pageCount, rangeSize));
+        } catch (RuntimeException e) {
+            if (e.getCause () instanceof IOException)
+                throw (IOException) e.getCause ();
+            throw e;
+        } finally {
+            pool.shutdown ();
+        }
+    }
+
+    private static final class RangeTask extends RecursiveTask<Map<String, AnchorExtractor.Anchor>> {
+
+        private final File mFile;
+        private final Set<String> mWantedAnchors;
+        private final MemoryUsageSetting mMemSettings;
+        private final int mStartPage;
+        private final int mEndPage;
+        private final int mRangeSize;
+
+        RangeTask (File file, Set<String> wantedAnchors, MemoryUsageSetting memSettings,
+                   int startPage, int endPage, int rangeSize) {
+            mFile = file;
+            mWantedAnchors = wantedAnchors;
+            mMemSettings = memSettings;
+            mStartPage = startPage;
+            mEndPage = endPage;
+            mRangeSize = rangeSize;
+        }
+
+        @Override
+        protected Map<String, AnchorExtractor.Anchor> compute () {
+            int pages = mEndPage - mStartPage + 1;
+            if (pages <= mRangeSize) {
+                try (PDDocument document = PDDocument.load (mFile, mMemSettings)) {
+                    return new LinkedHashMap<> (new AnchorExtractor (mWantedAnchors)
+                            .extract (document, mStartPage, mEndPage));
+                } catch (IOException e) {
+                    throw new RuntimeException (e);
+                }
+            }
+
+            int ranges = (pages + mRangeSize - 1) / mRangeSize;
+            int middle = mStartPage + (ranges / 2) * mRangeSize - 1;
+            RangeTask head = new RangeTask (mFile, mWantedAnchors, mMemSettings, mStartPage, middle, mRangeSize);
+            RangeTask tail = new RangeTask (mFile, mWantedAnchors, mMemSettings, middle + 1, mEndPage, mRangeSize);
+            tail.fork ();
+            Map<String, AnchorExtractor.Anchor> result = head.compute ();
+            for (Map.Entry<String, AnchorExtractor.Anchor> entry : tail.join ().entrySet ()) {
+                if (!result.containsKey (entry.getKey ()))
+                    result.put (entry.getKey (), entry.getValue ());
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.christopherdro.htmltopdf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed store of rendered PDFs (or their thumbnails) in a cache directory.
+ * <p>
+ * Entries are named after the hash of everything that determines the output, and the least
+ * recently used ones are evicted once the directory grows beyond its size cap. Hits are
+ * served by copying the stored file. Hard links would be cheaper, but a later conversion
+ * to the same destination path truncates the file in place and would corrupt the entry.
+ */
+class PdfRenderCache {
+
+    private static final String PDF_EXTENSION = ".pdf";
+    private static final Charset UTF_8 = Charset.forName ("UTF-8");
+
+    private final File mDirectory;
+    private final String mExtension;
+    private long mMaxSizeBytes;
+    /**
+     * Entry sizes in access order, least recently used first.
+     */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<> (16, 0.75f, true);
+    /**
+     * Number of outstanding {@link #acquire} calls per entry. Pinned entries are never evicted.
+     */
+    private final HashMap<String, Integer> mPins = new HashMap<> ();
+    private long mSizeBytes;
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+    private boolean mLoaded;
+
+    PdfRenderCache (File directory, long maxSizeBytes) {
+        this (directory, maxSizeBytes, PDF_EXTENSION);
+    }
+
+    /**
+     * @param extension the extension of the entry files, including the dot
+     */
+    PdfRenderCache (File directory, long maxSizeBytes, String extension) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+        mExtension = extension;
+    }
+
+    /**
+     * Hashes the parts that make up a cache key.
+     */
+    static String key (String... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance ("SHA-256");
+            for (String part : parts) {
+                digest.update (String.valueOf (part).getBytes (UTF_8));
+                digest.update ((byte) 0);
+            }
+            return toHex (digest.digest ());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException (e);
+        }
+    }
+
+    /**
+     * Hashes the contents of a file.
+     */
+    static String keyOf (File file) throws IOException {
+        try (FileInputStream in = new FileInputStream (file)) {
+            MessageDigest digest = MessageDigest.getInstance ("SHA-256");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read (buffer)) != -1) {
+                digest.update (buffer, 0, read);
+            }
+            return toHex (digest.digest ());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException (e);
+        }
+    }
+
+    static String toHex (byte[] bytes) {
+        StringBuilder hex = new StringBuilder (bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append (Character.forDigit ((b >> 4) & 0xF, 16)).append (Character.forDigit (b & 0xF, 16));
+        }
+        return hex.toString ();
+    }
+
+    /**
+     * Copies the entry for {@code key} to {@code destination}.
+     *
+     * @return whether there was an entry
+     */
+    synchronized boolean get (String key, File destination) throws IOException {
+        load ();
+        // get() rather than containsKey() so the entry becomes the most recently used
+        if (mEntries.get (key) == null) {
+            mMisses++;
+            return false;
+        }
+        File entry = getEntryFile (key);
+        if (!entry.exists ()) {
+            remove (key);
+            mMisses++;
+            return false;
+        }
+        copy (entry, destination);
+        entry.setLastModified (System.currentTimeMillis ());
+        mHits++;
+        return true;
+    }
+
+    /**
+     * Returns the file holding the entry for {@code key} without copying it, or {@code null}
+     * if there is none. The entry is protected from eviction until it is {@link #release released}.
+     * The file must be treated as read-only.
+     */
+    synchronized File acquire (String key) {
+        load ();
+        if (mEntries.get (key) == null || !getEntryFile (key).exists ()) {
+            remove (key);
+            mMisses++;
+            return null;
+        }
+        File entry = getEntryFile (key);
+        entry.setLastModified (System.currentTimeMillis ());
+        Integer pins = mPins.get (key);
+        mPins.put (key, pins == null ? 1 : pins + 1);
+        mHits++;
+        return entry;
+    }
+
+    synchronized void release (String key) {
+        Integer pins = mPins.get (key);
+        if (pins == null)
+            return;
+        if (pins > 1)
+            mPins.put (key, pins - 1);
+        else
+            mPins.remove (key);
+        trimTo (mMaxSizeBytes);
+    }
+
+    /**
+     * Stores a copy of {@code source} under {@code key} and evicts old entries if needed.
+     */
+    synchronized void put (String key, File source) throws IOException {
+        load ();
+        File temp = new File (mDirectory, key + ".tmp");
+        copy (source, temp);
+        File entry = getEntryFile (key);
+        if (!temp.renameTo (entry)) {
+            temp.delete ();
+            throw new IOException ("RNHTMLtoPDF error: Could not store cache entry.");
+        }
+        remove (key);
+        mEntries.put (key, entry.length ());
+        mSizeBytes += entry.length ();
+        trimTo (mMaxSizeBytes);
+    }
+
+    synchronized void invalidate (String key) {
+        load ();
+        if (mEntries.containsKey (key) && !mPins.containsKey (key)) {
+            remove (key);
+            getEntryFile (key).delete ();
+        }
+    }
+
+    synchronized void clear () {
+        load ();
+        for (String key : new ArrayList<> (mEntries.keySet ())) {
+            if (!mPins.containsKey (key)) {
+                remove (key);
+                getEntryFile (key).delete ();
+            }
+        }
+    }
+
+    synchronized void setMaxSizeBytes (long maxSizeBytes) {
+        mMaxSizeBytes = maxSizeBytes;
+        load ();
+        trimTo (mMaxSizeBytes);
+    }
+
+    synchronized long getMaxSizeBytes () {
+        return mMaxSizeBytes;
+    }
+
+    synchronized long getSizeBytes () {
+        load ();
+        return mSizeBytes;
+    }
+
+    synchronized int getEntryCount () {
+        load ();
+        return mEntries.size ();
+    }
+
+    synchronized int getHitCount () {
+        return mHits;
+    }
+
+    synchronized int getMissCount () {
+        return mMisses;
+    }
+
+    synchronized int getEvictionCount () {
+        return mEvictions;
+    }
+
+    /**
+     * Rebuilds the in-memory index from the directory, oldest entries first.
+     */
+    private void load () {
+        if (mLoaded)
+            return;
+        mLoaded = true;
+        if (!mDirectory.exists () && !mDirectory.mkdirs ())
+            return;
+
+        File[] files = mDirectory.listFiles ();
+        if (files == null)
+            return;
+        Arrays.sort (files, new Comparator<File> () {
+            @Override
+            public int compare (File a, File b) {
+                long diff = a.lastModified () - b.lastModified ();
+                return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName ();
+            if (!name.endsWith (mExtension)) {
+                file.delete ();
+                continue;
+            }
+            mEntries.put (name.substring (0, name.length () - mExtension.length ()), file.length ());
+            mSizeBytes += file.length ();
+        }
+    }
+
+    private void trimTo (long maxSizeBytes) {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet ().iterator ();
+        List<String> evicted = new ArrayList<> ();
+        while (mSizeBytes > maxSizeBytes && iterator.hasNext ()) {
+            Map.Entry<String, Long> entry = iterator.next ();
+            if (mPins.containsKey (entry.getKey ()))
+                continue;
+            mSizeBytes -= entry.getValue ();
+            evicted.add (entry.getKey ());
+            iterator.remove ();
+            mEvictions++;
+        }
+        for (String key : evicted) {
+            getEntryFile (key).delete ();
+        }
+    }
+
+    private void remove (String key) {
+        Long size = mEntries.remove (key);
+        if (size != null)
+            mSizeBytes -= size;
+    }
+
+    private File getEntryFile (String key) {
+        return new File (mDirectory, key + mExtension);
+    }
+
+    static void copy (File source, File destination) throws IOException {
+        try (FileChannel in = new FileInputStream (source).getChannel ();
+             FileChannel out = new FileOutputStream (destination).getChannel ()) {
+            long size = in.size ();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo (position, size - position, out);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.christopherdro.htmltopdf;
+
+import com.facebook.react.bridge.ReadableMap;
+import com.tom_roush.pdfbox.io.MemoryUsageSetting;
+
+/**
+ * Options of the PDFBox stage that runs after the WebView has written its PDF.
+ */
+class PostProcessOptions {
+
+    private static final String WATERMARK = "watermark";
+    private static final String STAMP = "stamp";
+    private static final String INCREMENTAL_SAVE = "incrementalSave";
+    private static final String MAX_MEMORY_BYTES = "maxMemoryBytes";
+    private static final String PIPE = "pipe";
+    private static final String DEDUPE = "dedupe";
+
+    boolean watermark;
+    StampLayout stampLayout = new StampLayout ();
+    /**
+     * Append the stamps as an incremental update instead of rewriting the whole file.
+     * Only honoured when the document was loaded from the destination file.
+     */
+    boolean incrementalSave;
+    /**
+     * Main memory PDFBox may buffer per document, see {@link MemoryPolicy}.
+     */
+    long maxMemoryBytes = MemoryPolicy.AUTO;
+    /**
+     * Parse the WebView output from a pipe while it is written, instead of from a file it
+     * has written first. The destination is then written once, by the save. Excludes
+     * {@link #incrementalSave}, which needs the written file.
+     */
+    boolean pipe;
+    /**
+     * Collapse identical images, fonts and other page resources into one object before
+     * saving, see {@link ResourceDeduplicator}. Not applied to incremental saves.
+     */
+    boolean dedupe;
+
+    MemoryUsageSetting getMemorySettings (long inputBytes) {
+        return MemoryPolicy.choose (inputBytes, maxMemoryBytes);
+    }
+
+    /**
+     * Describes the options that change the output, for cache keys.
+     */
+    String describe () {
+        return watermark + "|" + stampLayout.describe ();
+    }
+
+    static PostProcessOptions fromOptions (ReadableMap options) {
+        PostProcessOptions result = new PostProcessOptions ();
+        result.watermark = options.hasKey (WATERMARK) && options.getBoolean (WATERMARK);
+        result.incrementalSave = options.hasKey (INCREMENTAL_SAVE) && options.getBoolean (INCREMENTAL_SAVE);
+        result.pipe = options.hasKey (PIPE) && options.getBoolean (PIPE);
+        result.dedupe = options.hasKey (DEDUPE) && options.getBoolean (DEDUPE);
+        if (options.hasKey (MAX_MEMORY_BYTES))
+            result.maxMemoryBytes = (long) options.getDouble (MAX_MEMORY_BYTES);
+        if (options.hasKey (STAMP))
+            result.stampLayout = getStampLayout (options.getMap (STAMP));
+        return result;
+    }
+
+    private static StampLayout getStampLayout (ReadableMap stamp) {
+        StampLayout layout = new StampLayout ();
+        if (stamp.hasKey ("x"))
+            layout.x = (float) stamp.getDouble ("x");
+        if (stamp.hasKey ("y"))
+            layout.y = (float) stamp.getDouble ("y");
+        if (stamp.hasKey ("fontSize"))
+            layout.fontSize = (float) stamp.getDouble ("fontSize");
+        if (stamp.hasKey ("font"))
+            layout.setFont (stamp.getString ("font"));
+        if (stamp.hasKey ("color"))
+            layout.setColor (stamp.getString ("color"));
+        if (stamp.hasKey ("template"))
+            layout.template = stamp.getString ("template");
+        if (stamp.hasKey ("watermarkText"))
+            layout.watermarkText = stamp.getString ("watermarkText");
+        if (stamp.hasKey ("watermarkMargin"))
+            layout.watermarkMargin = (float) stamp.getDouble ("watermarkMargin");
+        return layout;
+    }
+}
@@ -1,8 +1,17 @@
 package com.christopherdro.htmltopdf;
 
+import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.print.AssetCache;
+import android.print.ConversionJob;
+import android.print.PageRange;
 import android.print.PdfConverter;
 import android.print.PrintAttributes;
+import android.print.Readiness;
+import android.print.WebViewPool;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
@@ -12,39 +21,114 @@ import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.ReadableType;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.tom_roush.pdfbox.android.PDFBoxResourceLoader;
 import com.tom_roush.pdfbox.io.MemoryUsageSetting;
 import com.tom_roush.pdfbox.multipdf.PDFMergerUtility;
 import com.tom_roush.pdfbox.pdmodel.PDDocument;
 import com.tom_roush.pdfbox.pdmodel.PDPage;
-import com.tom_roush.pdfbox.pdmodel.PDPageContentStream;
-import com.tom_roush.pdfbox.pdmodel.font.PDFont;
-import com.tom_roush.pdfbox.pdmodel.font.PDType1Font;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class RNHTMLtoPDFModule extends ReactContextBaseJavaModule {
 
     private static final String HTML = "html";
+    private static final String HTML_URI = "htmlUri";
+    private static final String URI = "uri";
     private static final String FILE_NAME = "fileName";
     private static final String FILE_NAMES = "fileNames";
     private static final String DIRECTORY = "directory";
-    private static final String WATERMARK = "watermark";
     private static final String BASE_64 = "base64";
     private static final String HEIGHT = "height";
     private static final String WIDTH = "width";
+    private static final String PRIORITY = "priority";
+    private static final String CACHE = "cache";
+    private static final String MAX_SIZE_BYTES = "maxSizeBytes";
+    private static final String TOC_HTML = "tocHtml";
+    private static final String TOC_PAGE_COUNT = "tocPageCount";
+    private static final String ANCHORS = "anchors";
+    private static final String POSITIONS = "positions";
+    private static final String PARALLELISM = "parallelism";
+    private static final String MAX_MEMORY_BYTES = "maxMemoryBytes";
+    private static final String MERGE_MODE = "mergeMode";
+    private static final String MAX_OPEN_DOCUMENTS = "maxOpenDocuments";
+    private static final String MAX_PARALLEL_JOBS = "maxParallelJobs";
+    private static final String MAX_QUEUED_JOBS = "maxQueuedJobs";
+    private static final String QUEUE_FULL_POLICY = "queueFullPolicy";
+    private static final String BATCH_ID = "batchId";
+    private static final String JOB_ID = "jobId";
+    private static final String INCLUDE_METRICS = "includeMetrics";
+    private static final String ASSETS = "assets";
+    private static final String WAIT_FOR = "waitFor";
+    private static final String READY_TIMEOUT_MS = "readyTimeoutMs";
+    private static final String MAX_RELOADS = "maxReloads";
+    private static final String ASSET_MAX_SIZE_BYTES = "assetMaxSizeBytes";
+    private static final String PAGES = "pages";
+    private static final String THUMBNAIL_WIDTH = "thumbnailWidth";
+
+    private static final String BATCH_PROGRESS_EVENT = "RNHTMLtoPDFBatchProgress";
+    private static final String PROGRESS_EVENT = "RNHTMLtoPDFProgress";
+    private static final String PHASE_RENDERING = "rendering";
+    private static final String PHASE_MERGING = "merging";
+    private static final String PHASE_STAMPING = "stamping";
+    private static final String PHASE_SAVING = "saving";
 
     private static final String PDF_EXTENSION = ".pdf";
     private static final String PDF_PREFIX = "PDF_";
+    private static final String RENDER_CACHE_DIRECTORY = "RNHTMLtoPDF-renders";
+    private static final String SECTION_CACHE_DIRECTORY = "RNHTMLtoPDF-sections";
+    private static final String THUMBNAIL_CACHE_DIRECTORY = "RNHTMLtoPDF-thumbnails";
+    private static final String PNG_EXTENSION = ".png";
+    private static final long DEFAULT_RENDER_CACHE_SIZE = 50 * 1024 * 1024;
 
     private final ReactApplicationContext mReactContext;
+    private PdfRenderCache mRenderCache;
+    private PdfRenderCache mSectionCache;
+    private PdfRenderCache mThumbnailCache;
+    /**
+     * Calls that are in flight, by the {@code jobId} (or {@code batchId}) the caller chose.
+     * Declared as a {@link ConcurrentHashMap} so that {@code remove (key, value)} binds to its
+     * own method rather than the API 24 {@link Map} default.
+     */
+    private final ConcurrentHashMap<String, JobHandle> mJobHandles = new ConcurrentHashMap<> ();
+    private final MetricsRegistry mMetrics = new MetricsRegistry ();
+
+    /**
+     * Runs everything that happens after the WebView has written its PDF (PDFBox loading,
+     * merging, page numbering, saving) so the native modules thread is never blocked.
+     */
+    private final ExecutorService mWorker = Executors.newFixedThreadPool (2, new ThreadFactory () {
+        private final AtomicInteger mCount = new AtomicInteger ();
 
-    final Semaphore mutex = new Semaphore (0);
+        @Override
+        public Thread newThread (Runnable runnable) {
+            Thread thread = new Thread (runnable, "RNHTMLtoPDF-worker-" + mCount.incrementAndGet ());
+            thread.setDaemon (true);
+            return thread;
+        }
+    });
 
     public RNHTMLtoPDFModule (ReactApplicationContext reactContext) {
         super (reactContext);
@@ -56,239 +140,1493 @@ public class RNHTMLtoPDFModule extends ReactContextBaseJavaModule {
         return "RNHTMLtoPDF";
     }
 
+    /**
+     * Receives the outcome of a single conversion, on any thread.
+     */
+    private interface ResultCallback {
+        void onSuccess (String filePath);
+
+        void onFailure (Exception error);
+    }
+
+    /**
+     * Resolves {@code promise} with the file path or, with {@code includeMetrics} or
+     * {@code base64}, with {@code {filePath, metrics, base64}}. Must be called on the worker,
+     * as encoding reads the whole file.
+     */
+    private static ResultCallback toCallback (final Promise promise, ReadableMap options, JobHandle handle) {
+        final ConversionMetrics metrics = getResultMetrics (options, handle);
+        final boolean base64 = options.hasKey (BASE_64) && options.getBoolean (BASE_64);
+        return new ResultCallback () {
+            @Override
+            public void onSuccess (String filePath) {
+                if (metrics == null && !base64) {
+                    promise.resolve (filePath);
+                    return;
+                }
+                WritableMap result = Arguments.createMap ();
+                result.putString ("filePath", filePath);
+                if (metrics != null)
+                    result.putMap ("metrics", toWritableMap (metrics));
+                if (base64) {
+                    try {
+                        result.putString ("base64", Base64Reader.encode (new File (filePath)));
+                    } catch (IOException e) {
+                        promise.reject (e);
+                        return;
+                    }
+                }
+                promise.resolve (result);
+            }
+
+            @Override
+            public void onFailure (Exception error) {
+                promise.reject (error);
+            }
+        };
+    }
+
     @ReactMethod
     public void convert (final ReadableMap options, final Promise promise) {
+        JobHandle handle;
         try {
-            File destinationFile;
-            String htmlString = options.hasKey (HTML) ? options.getString (HTML) : null;
-            if (htmlString == null) {
-                promise.reject (new Exception ("RNHTMLtoPDF error: Invalid htmlString parameter."));
+            handle = startJob (options);
+        } catch (Exception e) {
+            promise.reject (e);
+            return;
+        }
+        convertFile (options, handle, finishJob (handle, toCallback (promise, options, handle)));
+    }
+
+    /**
+     * Converts only the first page (or the given {@code pages}) for an instant preview, and
+     * renders a {@code thumbnailWidth} pixels wide PNG of the first page next to the PDF.
+     * Takes the same options as {@link #convert}; with {@code cache}, repeated previews of
+     * the same HTML are served from the render and thumbnail caches without a WebView.
+     * Resolves {@code {filePath, thumbnailPath}}, plus {@code metrics} with
+     * {@code includeMetrics}. Requires Android 5.0.
+     */
+    @ReactMethod
+    public void preview (final ReadableMap options, final Promise promise) {
+        if (!ThumbnailRenderer.isSupported ()) {
+            promise.reject (new Exception ("RNHTMLtoPDF error: Previews require Android 5.0 or later."));
+            return;
+        }
+        final int thumbnailWidth = options.hasKey (THUMBNAIL_WIDTH)
+                ? options.getInt (THUMBNAIL_WIDTH)
+                : ThumbnailRenderer.DEFAULT_WIDTH;
+        if (thumbnailWidth <= 0) {
+            promise.reject (new Exception ("RNHTMLtoPDF error: Invalid thumbnailWidth parameter."));
+            return;
+        }
+        final JobHandle handle;
+        try {
+            handle = startJob (options);
+        } catch (Exception e) {
+            promise.reject (e);
+            return;
+        }
+        handle.setPages (new PageRange[]{new PageRange (0, 0)});
+        final ConversionMetrics metrics = getResultMetrics (options, handle);
+        final ResultCallback callback = finishJob (handle, new ResultCallback () {
+            @Override
+            public void onSuccess (String filePath) {
+                WritableMap result = Arguments.createMap ();
+                result.putString ("filePath", filePath);
+                result.putString ("thumbnailPath", getThumbnailFile (filePath).getAbsolutePath ());
+                if (metrics != null)
+                    result.putMap ("metrics", toWritableMap (metrics));
+                promise.resolve (result);
+            }
+
+            @Override
+            public void onFailure (Exception error) {
+                promise.reject (error);
+            }
+        });
+        convertFile (options, handle, new ResultCallback () {
+            @Override
+            public void onSuccess (String filePath) {
+                try {
+                    handle.throwIfCancelled ();
+                    long startedAt = ConversionMetrics.now ();
+                    new ThumbnailRenderer (getThumbnailCache ()).render (new File (filePath), thumbnailWidth,
+                            getThumbnailFile (filePath));
+                    handle.getMetrics ().addStageTimeSince (ConversionMetrics.THUMBNAIL, startedAt);
+                    callback.onSuccess (filePath);
+                } catch (Exception e) {
+                    getThumbnailFile (filePath).delete ();
+                    if (handle.isCancelled ())
+                        new File (filePath).delete ();
+                    callback.onFailure (e);
+                }
+            }
+
+            @Override
+            public void onFailure (Exception error) {
+                callback.onFailure (error);
+            }
+        });
+    }
+
+    /**
+     * The PNG written next to a previewed PDF.
+     */
+    private static File getThumbnailFile (String filePath) {
+        String path = filePath.endsWith (PDF_EXTENSION)
+                ? filePath.substring (0, filePath.length () - PDF_EXTENSION.length ())
+                : filePath;
+        return new File (path + PNG_EXTENSION);
+    }
+
+    private static ConversionMetrics getResultMetrics (ReadableMap options, JobHandle handle) {
+        return options.hasKey (INCLUDE_METRICS) && options.getBoolean (INCLUDE_METRICS) ? handle.getMetrics () : null;
+    }
+
+    /**
+     * Starts the call described by {@code options}: registers its {@code jobId} and takes
+     * its {@code assets} and readiness options.
+     */
+    private JobHandle startJob (ReadableMap options) throws Exception {
+        Readiness readiness = getReadiness (options);
+        JobHandle handle = startJob (options.hasKey (JOB_ID) ? options.getString (JOB_ID) : null);
+        handle.setAssets (getAssets (options));
+        handle.setReadiness (readiness);
+        return handle;
+    }
+
+    /**
+     * Registers a call under {@code jobId} so that it can be {@link #cancel cancelled}.
+     */
+    private JobHandle startJob (String jobId) {
+        JobHandle handle = new JobHandle (jobId);
+        if (jobId != null)
+            mJobHandles.put (jobId, handle);
+        return handle;
+    }
+
+    /**
+     * Wraps {@code callback} so that the call is unregistered and its metrics are recorded
+     * once it has a result.
+     */
+    private ResultCallback finishJob (final JobHandle handle, final ResultCallback callback) {
+        return new ResultCallback () {
+            @Override
+            public void onSuccess (String filePath) {
+                unregister ();
+                handle.getMetrics ().finish ();
+                mMetrics.recordSuccess (handle.getMetrics ());
+                callback.onSuccess (filePath);
+            }
+
+            @Override
+            public void onFailure (Exception error) {
+                unregister ();
+                mMetrics.recordFailure ();
+                callback.onFailure (error);
+            }
+
+            private void unregister () {
+                if (handle.getId () != null)
+                    mJobHandles.remove (handle.getId (), handle);
+            }
+        };
+    }
+
+    /**
+     * Cancels the {@link #convert}, {@link #mergeAndConvert}, {@link #convertWithToc} or
+     * {@link #convertBatch} call started with this {@code jobId} or {@code batchId}. Its
+     * promise is rejected and its temp files are deleted. Resolves with whether such a call
+     * was still running.
+     */
+    @ReactMethod
+    public void cancel (String jobId, Promise promise) {
+        JobHandle handle = jobId != null ? mJobHandles.get (jobId) : null;
+        promise.resolve (handle != null && handle.cancel ());
+    }
+
+    /**
+     * Resolves the histograms of every call that finished since the last
+     * {@link #resetMetrics()}: one per stage in milliseconds, plus page count, bytes written
+     * and peak temp file usage.
+     */
+    @ReactMethod
+    public void getMetrics (Promise promise) {
+        WritableMap metrics = Arguments.createMap ();
+        metrics.putInt ("succeeded", mMetrics.getSucceeded ());
+        metrics.putInt ("failed", mMetrics.getFailed ());
+        WritableMap stages = Arguments.createMap ();
+        for (Map.Entry<String, MetricsRegistry.Histogram> stage : mMetrics.getStages ().entrySet ()) {
+            stages.putMap (stage.getKey (), toWritableMap (stage.getValue ()));
+        }
+        metrics.putMap ("stages", stages);
+        for (Map.Entry<String, MetricsRegistry.Histogram> size : mMetrics.getSizes ().entrySet ()) {
+            metrics.putMap (size.getKey (), toWritableMap (size.getValue ()));
+        }
+        promise.resolve (metrics);
+    }
+
+    @ReactMethod
+    public void resetMetrics () {
+        mMetrics.reset ();
+    }
+
+    private static WritableMap toWritableMap (ConversionMetrics metrics) {
+        WritableMap map = Arguments.createMap ();
+        WritableMap stages = Arguments.createMap ();
+        for (Map.Entry<String, Long> stage : metrics.getStageTimesMs ().entrySet ()) {
+            stages.putDouble (stage.getKey (), stage.getValue ());
+        }
+        map.putMap ("stages", stages);
+        map.putInt ("renders", metrics.getRenderCount ());
+        map.putInt ("reloads", metrics.getReloadCount ());
+        map.putInt ("pages", metrics.getPageCount ());
+        map.putDouble ("bytesWritten", metrics.getBytesWritten ());
+        map.putDouble ("peakTempBytes", metrics.getPeakTempBytes ());
+        map.putInt ("dedupedObjects", metrics.getDedupedObjects ());
+        map.putDouble ("dedupedBytes", metrics.getDedupedBytes ());
+        return map;
+    }
+
+    private static WritableMap toWritableMap (MetricsRegistry.Histogram histogram) {
+        WritableMap map = Arguments.createMap ();
+        map.putDouble ("count", histogram.count);
+        map.putDouble ("sum", histogram.sum);
+        map.putDouble ("min", histogram.count > 0 ? histogram.min : 0);
+        map.putDouble ("max", histogram.max);
+        map.putDouble ("p50", histogram.percentile (0.5));
+        map.putDouble ("p90", histogram.percentile (0.9));
+        map.putDouble ("p99", histogram.percentile (0.99));
+        WritableArray buckets = Arguments.createArray ();
+        for (int i = 0; i < histogram.counts.length; i++) {
+            WritableMap bucket = Arguments.createMap ();
+            if (i < histogram.bounds.length)
+                bucket.putDouble ("le", histogram.bounds[i]);
+            else
+                bucket.putNull ("le");
+            bucket.putDouble ("count", histogram.counts[i]);
+            buckets.pushMap (bucket);
+        }
+        map.putArray ("buckets", buckets);
+        return map;
+    }
+
+    private void emitProgress (JobHandle handle, String phase, int current, int total) {
+        if (handle.getId () == null)
+            return;
+        WritableMap event = Arguments.createMap ();
+        event.putString ("jobId", handle.getId ());
+        event.putString ("phase", phase);
+        event.putInt ("current", current);
+        event.putInt ("total", total);
+        emit (PROGRESS_EVENT, event);
+    }
+
+    private void convertFile (final ReadableMap options, final JobHandle handle, final ResultCallback callback) {
+        try {
+            final HtmlSource source = getHtmlSource (options);
+            if (source == null) {
+                callback.onFailure (new Exception ("RNHTMLtoPDF error: Invalid htmlString parameter."));
                 return;
             }
 
-            String fileName;
-            if (options.hasKey (FILE_NAME)) {
-                fileName = options.getString (FILE_NAME);
-                if (!isFileNameValid (fileName)) {
-                    promise.reject (new Exception ("RNHTMLtoPDF error: Invalid fileName parameter."));
-                    return;
+            if (options.hasKey (PAGES))
+                handle.setPages (getPageRanges (options));
+            final File outputFile = getDestinationFile (options, getFileName (options));
+            PrintAttributes pagesize = getPageSize (options);
+            final PostProcessOptions postProcessOptions = PostProcessOptions.fromOptions (options);
+            if (!options.hasKey (CACHE) || !options.getBoolean (CACHE)) {
+                renderAndStamp (source, outputFile, pagesize, getPriority (options), postProcessOptions, null,
+                        handle, callback);
+                return;
+            }
+
+            final PrintAttributes printAttributes = pagesize;
+            final int priority = getPriority (options);
+            mWorker.execute (new Runnable () {
+                @Override
+                public void run () {
+                    try {
+                        String cacheKey = getRenderCacheKey (
+                                source.getCacheKey (mReactContext) + getAssetsCacheKey (handle.getAssets ()),
+                                printAttributes, handle.getPages (), postProcessOptions);
+                        if (getRenderCache ().get (cacheKey, outputFile)) {
+                            handle.getMetrics ().setOutput (0, outputFile.length ());
+                            callback.onSuccess (outputFile.getAbsolutePath ());
+                            return;
+                        }
+                        renderAndStamp (source, outputFile, printAttributes, priority, postProcessOptions, cacheKey,
+                                handle, callback);
+                    } catch (Exception e) {
+                        callback.onFailure (e);
+                    }
                 }
-            } else {
-                fileName = PDF_PREFIX + UUID.randomUUID ().toString ();
+            });
+        } catch (Exception e) {
+            callback.onFailure (e);
+        }
+    }
+
+    /**
+     * Renders the HTML, stamps the result and reports its path. With a {@code cacheKey}, the
+     * result is also stored in the render cache. With {@link PostProcessOptions#pipe}, the
+     * WebView output is parsed from a pipe while it is written and only the stamped document
+     * is written to {@code outputFile}.
+     */
+    private void renderAndStamp (HtmlSource source, final File outputFile, PrintAttributes pagesize, int priority,
+                                 final PostProcessOptions postProcessOptions, final String cacheKey,
+                                 final JobHandle handle, final ResultCallback callback) throws Exception {
+        final AtomicReference<PDDocument> streamed = new AtomicReference<> ();
+        ConversionJob.StreamConsumer consumer = null;
+        if (postProcessOptions.pipe) {
+            consumer = new ConversionJob.StreamConsumer () {
+                @Override
+                public void consume (ConversionJob job, InputStream pdf) throws Exception {
+                    long loadStartedAt = ConversionMetrics.now ();
+                    streamed.set (PDDocument.load (pdf, postProcessOptions.getMemorySettings (0)));
+                    handle.getMetrics ().addStageTimeSince (ConversionMetrics.LOAD, loadStartedAt);
+                }
+            };
+        }
+        emitProgress (handle, PHASE_RENDERING, 1, 1);
+        convertToPDF (source, outputFile, pagesize, priority, handle, consumer, new ConversionJob.Listener () {
+            @Override
+            public void onFinished (ConversionJob job) {
+                mWorker.execute (new Runnable () {
+                    @Override
+                    public void run () {
+                        try {
+                            handle.throwIfCancelled ();
+                            PDDocument document = streamed.getAndSet (null);
+                            boolean loadedFromDestination = document == null;
+                            if (loadedFromDestination) {
+                                long loadStartedAt = ConversionMetrics.now ();
+                                document = PDDocument.load (outputFile,
+                                        postProcessOptions.getMemorySettings (outputFile.length ()));
+                                handle.getMetrics ().addStageTimeSince (ConversionMetrics.LOAD, loadStartedAt);
+                            }
+                            stampAndSave (document, outputFile, loadedFromDestination, postProcessOptions, handle);
+                            if (cacheKey != null)
+                                storeInRenderCache (cacheKey, outputFile);
+                            callback.onSuccess (outputFile.getAbsolutePath ());
+                        } catch (Exception e) {
+                            onFailed (null, e);
+                        }
+                    }
+                });
             }
 
-            if (options.hasKey (DIRECTORY)) {
-                String state = Environment.getExternalStorageState ();
-                File path = new File (Environment.getExternalStoragePublicDirectory (Environment.DIRECTORY_DOCUMENTS), options.getString (DIRECTORY));
+            @Override
+            public void onFailed (ConversionJob job, Exception error) {
+                PDDocument document = streamed.getAndSet (null);
+                if (document != null) {
+                    try {
+                        document.close ();
+                    } catch (IOException ignored) {
+                    }
+                }
+                if (handle.isCancelled ())
+                    outputFile.delete ();
+                callback.onFailure (error);
+            }
+        });
+    }
+
+    /**
+     * Converts every job of {@code jobs} (each taking the same options as {@link #convert}) to
+     * its own PDF. At most {@code parallelism} jobs are in flight at once, sharing the pooled
+     * WebViews and the worker executor. Resolves with one {@code {filePath}} or
+     * {@code {error}} result per job, in order, and emits {@link #BATCH_PROGRESS_EVENT} after
+     * every finished job.
+     */
+    @ReactMethod
+    public void convertBatch (final ReadableArray jobs, final ReadableMap options, final Promise promise) {
+        if (jobs == null || jobs.size () == 0) {
+            promise.reject (new Exception ("RNHTMLtoPDF error: Invalid jobs parameter."));
+            return;
+        }
+        int parallelism = options.hasKey (PARALLELISM)
+                ? options.getInt (PARALLELISM)
+                : PdfConverter.getInstance ().getMaxParallelJobs ();
+        String batchId = options.hasKey (BATCH_ID) ? options.getString (BATCH_ID) : null;
+        new BatchConversion (jobs, startJob (batchId), Math.max (1, parallelism), promise).start ();
+    }
+
+    /**
+     * The jobs of {@link #convertBatch}. Every job gets its own {@link JobHandle}, registered
+     * under its own {@code jobId} if it has one; cancelling the batch cancels all of them.
+     */
+    private final class BatchConversion {
+
+        private final ReadableArray mJobs;
+        private final JobHandle mBatchHandle;
+        private final int mParallelism;
+        private final Promise mPromise;
+        private final WritableMap[] mResults;
+        private int mNextIndex;
+        private int mCompleted;
+        private int mFailed;
+
+        BatchConversion (ReadableArray jobs, JobHandle batchHandle, int parallelism, Promise promise) {
+            mJobs = jobs;
+            mBatchHandle = batchHandle;
+            mParallelism = parallelism;
+            mPromise = promise;
+            mResults = new WritableMap[jobs.size ()];
+        }
+
+        void start () {
+            for (int i = 0; i < Math.min (mParallelism, mJobs.size ()); i++) {
+                startNext ();
+            }
+        }
 
-                if (!path.exists ()) {
-                    if (!path.mkdirs ()) {
-                        promise.reject (new Exception ("RNHTMLtoPDF error: Could not create folder structure."));
+        /**
+         * Submits the next job from the worker executor, so that a full queue with the
+         * {@code wait} policy never blocks the thread that reported the previous result.
+         */
+        private void startNext () {
+            final int index;
+            synchronized (this) {
+                if (mNextIndex >= mJobs.size ())
+                    return;
+                index = mNextIndex++;
+            }
+            mWorker.execute (new Runnable () {
+                @Override
+                public void run () {
+                    ReadableMap job;
+                    final JobHandle handle;
+                    try {
+                        mBatchHandle.throwIfCancelled ();
+                        job = mJobs.getMap (index);
+                        handle = startJob (job);
+                    } catch (Exception e) {
+                        onResult (index, null, null, e);
                         return;
                     }
+                    mBatchHandle.addCancelHook (new Runnable () {
+                        @Override
+                        public void run () {
+                            handle.cancel ();
+                        }
+                    });
+                    final ConversionMetrics metrics = getResultMetrics (job, handle);
+                    convertFile (job, handle, finishJob (handle, new ResultCallback () {
+                        @Override
+                        public void onSuccess (String filePath) {
+                            onResult (index, filePath, metrics, null);
+                        }
+
+                        @Override
+                        public void onFailure (Exception error) {
+                            onResult (index, null, null, error);
+                        }
+                    }));
                 }
-                destinationFile = new File (path, fileName + PDF_EXTENSION);
+            });
+        }
+
+        private void onResult (int index, String filePath, ConversionMetrics metrics, Exception error) {
+            WritableMap result = Arguments.createMap ();
+            WritableMap event = Arguments.createMap ();
+            if (error == null) {
+                result.putString ("filePath", filePath);
+                if (metrics != null)
+                    result.putMap ("metrics", toWritableMap (metrics));
+                event.putString ("filePath", filePath);
             } else {
-                destinationFile = getTempFile (fileName);
-            }
-
-            PrintAttributes pagesize = null;
-            if (options.hasKey (HEIGHT) && options.hasKey (WIDTH)) {
-                pagesize = new PrintAttributes.Builder ()
-                        .setMediaSize (new PrintAttributes.MediaSize ("custom", "CUSTOM",
-                                (int) (options.getInt (WIDTH) * 1000 / 72.0),
-                                (int) (options.getInt (HEIGHT) * 1000 / 72.0))
-                        )
-                        .setResolution (new PrintAttributes.Resolution ("RESOLUTION_ID", "RESOLUTION_ID", 600, 600))
-                        .setMinMargins (PrintAttributes.Margins.NO_MARGINS)
-                        .build ();
-            }
-
-            convertToPDF (htmlString,
-                    destinationFile,
-                    options.hasKey (BASE_64) && options.getBoolean (BASE_64),
-                    Arguments.createMap (),
-                    promise,
-                    pagesize,
-                    mutex
-            );
-            mutex.acquire ();
-            PDDocument newPdf = PDDocument.load (destinationFile);
-            PDFBoxResourceLoader.init (getReactApplicationContext ());
-            boolean watermark = false;
-            if (options.hasKey (WATERMARK)) {
-                watermark = options.getBoolean (WATERMARK);
+                Log.d ("RNHTMLtoPDF", "convertBatch: job " + index + " failed", error);
+                result.putString ("error", error.getMessage ());
+                event.putString ("error", error.getMessage ());
             }
-            // Use optimized page numbering method
-            addPageNumbersOptimized(newPdf, watermark);
-            newPdf.save (destinationFile);
-            promise.resolve (destinationFile.getAbsolutePath ());
 
+            boolean done;
+            synchronized (this) {
+                mResults[index] = result;
+                mCompleted++;
+                if (error != null)
+                    mFailed++;
+                done = mCompleted == mResults.length;
+                if (mBatchHandle.getId () != null)
+                    event.putString ("batchId", mBatchHandle.getId ());
+                event.putInt ("index", index);
+                event.putInt ("completed", mCompleted);
+                event.putInt ("failed", mFailed);
+                event.putInt ("total", mResults.length);
+            }
+            emit (BATCH_PROGRESS_EVENT, event);
 
-        } catch (Exception e) {
-            promise.reject (e);
+            if (!done) {
+                startNext ();
+                return;
+            }
+            WritableArray results = Arguments.createArray ();
+            for (WritableMap item : mResults) {
+                results.pushMap (item);
+            }
+            if (mBatchHandle.getId () != null)
+                mJobHandles.remove (mBatchHandle.getId (), mBatchHandle);
+            mPromise.resolve (results);
         }
     }
 
-    @ReactMethod
-    public void mergeAndConvert (
-            final ReadableMap options,
-            final Promise promise
-    ) {
+    private void emit (String eventName, WritableMap params) {
+        if (!mReactContext.hasActiveCatalystInstance ())
+            return;
+        mReactContext
+                .getJSModule (DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit (eventName, params);
+    }
+
+    private synchronized PdfRenderCache getRenderCache () {
+        if (mRenderCache == null)
+            mRenderCache = new PdfRenderCache (new File (getReactApplicationContext ().getCacheDir (), RENDER_CACHE_DIRECTORY),
+                    DEFAULT_RENDER_CACHE_SIZE);
+        return mRenderCache;
+    }
+
+    /**
+     * Holds the unstamped PDF of every {@link #mergeAndConvert} section, so that only the
+     * sections whose HTML changed are rendered again.
+     */
+    private synchronized PdfRenderCache getSectionCache () {
+        if (mSectionCache == null)
+            mSectionCache = new PdfRenderCache (new File (getReactApplicationContext ().getCacheDir (), SECTION_CACHE_DIRECTORY),
+                    DEFAULT_RENDER_CACHE_SIZE);
+        return mSectionCache;
+    }
+
+    /**
+     * Holds the first page thumbnails of {@link #preview}, by the contents of the PDF.
+     */
+    private synchronized PdfRenderCache getThumbnailCache () {
+        if (mThumbnailCache == null)
+            mThumbnailCache = new PdfRenderCache (new File (getReactApplicationContext ().getCacheDir (), THUMBNAIL_CACHE_DIRECTORY),
+                    DEFAULT_RENDER_CACHE_SIZE, PNG_EXTENSION);
+        return mThumbnailCache;
+    }
+
+    /**
+     * @param assetsKey the {@link #getAssetsCacheKey} of the call
+     */
+    private String getSectionCacheKey (HtmlSource section, PrintAttributes printAttributes, String assetsKey)
+            throws IOException {
+        return PdfRenderCache.key (section.getCacheKey (mReactContext) + assetsKey, String.valueOf (printAttributes));
+    }
+
+    /**
+     * Identifies the {@code assets} of a call and the current contents of their sources, to
+     * be appended to the HTML part of cache keys. Empty without assets, so that the keys of
+     * calls without assets are unchanged.
+     */
+    private String getAssetsCacheKey (Map<String, String> assets) {
+        if (assets == null || assets.isEmpty ())
+            return "";
+        StringBuilder key = new StringBuilder ("|assets");
+        for (String url : new TreeSet<> (assets.keySet ())) {
+            String source = assets.get (url);
+            key.append ('|').append (url).append ('=').append (source)
+                    .append ('@').append (AssetCache.getInstance ().getVersion (mReactContext, source));
+        }
+        return key.toString ();
+    }
+
+    private void releaseSections (List<String> cacheKeys) {
+        PdfRenderCache cache = getSectionCache ();
+        synchronized (cacheKeys) {
+            for (String cacheKey : cacheKeys) {
+                cache.release (cacheKey);
+            }
+            cacheKeys.clear ();
+        }
+    }
+
+    /**
+     * @param pages the pages rendered, or {@code null} for all of them, which keeps the keys
+     *              of whole documents the same as before page ranges existed
+     */
+    private static String getRenderCacheKey (String htmlString, PrintAttributes printAttributes, PageRange[] pages,
+                                             PostProcessOptions postProcessOptions) {
+        if (pages == null)
+            return PdfRenderCache.key (htmlString, String.valueOf (printAttributes), postProcessOptions.describe ());
+        return PdfRenderCache.key (htmlString, String.valueOf (printAttributes), postProcessOptions.describe (),
+                Arrays.toString (pages));
+    }
+
+    private void storeInRenderCache (String cacheKey, File file) {
         try {
-            File destinationFile;
-            File tempDestinationFile;
-            String fileName;
-            // array for storing temp file paths
-            ArrayList<String> tempFiles = new ArrayList<String> ();
+            getRenderCache ().put (cacheKey, file);
+        } catch (IOException e) {
+            Log.d ("RNHTMLtoPDF", "Failed to cache " + file, e);
+        }
+    }
 
-            if (options.hasKey (FILE_NAME)) {
-                fileName = options.getString (FILE_NAME);
-                if (!isFileNameValid (fileName)) {
-                    promise.reject (new Exception ("RNHTMLtoPDF error: Invalid fileName parameter."));
-                    return;
+    @ReactMethod
+    public void configureCache (final ReadableMap options) {
+        if (options.hasKey (ASSET_MAX_SIZE_BYTES))
+            AssetCache.getInstance ().setMaxSizeBytes ((long) options.getDouble (ASSET_MAX_SIZE_BYTES));
+        if (options.hasKey (MAX_SIZE_BYTES)) {
+            final long maxSizeBytes = (long) options.getDouble (MAX_SIZE_BYTES);
+            mWorker.execute (new Runnable () {
+                @Override
+                public void run () {
+                    getRenderCache ().setMaxSizeBytes (maxSizeBytes);
+                    getSectionCache ().setMaxSizeBytes (maxSizeBytes);
+                    getThumbnailCache ().setMaxSizeBytes (maxSizeBytes);
                 }
-            } else {
-                fileName = PDF_PREFIX + UUID.randomUUID ().toString ();
+            });
+        }
+    }
+
+    @ReactMethod
+    public void getCacheStats (final Promise promise) {
+        mWorker.execute (new Runnable () {
+            @Override
+            public void run () {
+                WritableMap stats = getCacheStats (getRenderCache ());
+                stats.putMap ("sections", getCacheStats (getSectionCache ()));
+                stats.putMap ("thumbnails", getCacheStats (getThumbnailCache ()));
+                stats.putMap ("assets", getAssetCacheStats ());
+                promise.resolve (stats);
             }
+        });
+    }
+
+    private static WritableMap getCacheStats (PdfRenderCache cache) {
+        WritableMap stats = Arguments.createMap ();
+        stats.putInt ("hits", cache.getHitCount ());
+        stats.putInt ("misses", cache.getMissCount ());
+        stats.putInt ("evictions", cache.getEvictionCount ());
+        stats.putInt ("entries", cache.getEntryCount ());
+        stats.putDouble ("sizeBytes", cache.getSizeBytes ());
+        stats.putDouble ("maxSizeBytes", cache.getMaxSizeBytes ());
+        return stats;
+    }
+
+    private static WritableMap getAssetCacheStats () {
+        AssetCache cache = AssetCache.getInstance ();
+        WritableMap stats = Arguments.createMap ();
+        stats.putInt ("hits", cache.getHitCount ());
+        stats.putInt ("misses", cache.getMissCount ());
+        stats.putInt ("evictions", cache.getEvictionCount ());
+        stats.putInt ("entries", cache.getEntryCount ());
+        stats.putDouble ("sizeBytes", cache.getSizeBytes ());
+        stats.putDouble ("maxSizeBytes", cache.getMaxSizeBytes ());
+        return stats;
+    }
 
-            if (options.hasKey (DIRECTORY)) {
-                String state = Environment.getExternalStorageState ();
-                File path = new File (Environment.getExternalStoragePublicDirectory (Environment.DIRECTORY_DOCUMENTS), options.getString (DIRECTORY));
+    /**
+     * Reads the sources of an {@code assets} map into the asset cache, so that the first
+     * conversion using them doesn't wait for the disk. Resolves with the number of files
+     * that had to be read.
+     */
+    @ReactMethod
+    public void preloadAssets (final ReadableMap assets, final Promise promise) {
+        mWorker.execute (new Runnable () {
+            @Override
+            public void run () {
+                try {
+                    Set<String> sources = new HashSet<> (toStringMap (assets).values ());
+                    promise.resolve (AssetCache.getInstance ().preload (mReactContext, sources));
+                } catch (Exception e) {
+                    promise.reject (e);
+                }
+            }
+        });
+    }
 
-                if (!path.exists ()) {
-                    if (!path.mkdirs ()) {
-                        promise.reject (new Exception ("RNHTMLtoPDF error: Could not create folder structure."));
+    /**
+     * Base64 encodes {@code length} bytes of a PDF from {@code offset}, so that large files
+     * can be read in ranges without ever being encoded as a whole. Resolves
+     * {@code {base64, bytesRead, size}}; the next range starts at {@code offset + bytesRead}.
+     */
+    @ReactMethod
+    public void readBase64Range (final String filePath, final double offset, final int length, final Promise promise) {
+        mWorker.execute (new Runnable () {
+            @Override
+            public void run () {
+                try {
+                    Base64Reader.Chunk chunk = Base64Reader.readRange (new File (filePath), (long) offset,
+                            length > 0 ? length : Base64Reader.DEFAULT_CHUNK_BYTES);
+                    WritableMap result = Arguments.createMap ();
+                    result.putString ("base64", chunk.base64);
+                    result.putInt ("bytesRead", chunk.bytesRead);
+                    result.putDouble ("size", chunk.size);
+                    promise.resolve (result);
+                } catch (Exception e) {
+                    promise.reject (e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the cached render of the given {@link #convert} options.
+     */
+    @ReactMethod
+    public void invalidateCache (final ReadableMap options, final Promise promise) {
+        mWorker.execute (new Runnable () {
+            @Override
+            public void run () {
+                try {
+                    HtmlSource source = getHtmlSource (options);
+                    if (source == null) {
+                        promise.reject (new Exception ("RNHTMLtoPDF error: Invalid htmlString parameter."));
                         return;
                     }
+                    getRenderCache ().invalidate (getRenderCacheKey (
+                            source.getCacheKey (mReactContext) + getAssetsCacheKey (getAssets (options)), getPageSize (options),
+                            options.hasKey (PAGES) ? getPageRanges (options) : null, PostProcessOptions.fromOptions (options)));
+                    promise.resolve (null);
+                } catch (Exception e) {
+                    promise.reject (e);
                 }
-                destinationFile = new File (path, fileName + PDF_EXTENSION);
-            } else {
-                destinationFile = getTempFile (fileName);
             }
+        });
+    }
 
-            ReadableArray htmlString = options.getArray (HTML);
-            if (htmlString == null) {
+    @ReactMethod
+    public void clearCache (final Promise promise) {
+        mWorker.execute (new Runnable () {
+            @Override
+            public void run () {
+                getRenderCache ().clear ();
+                getSectionCache ().clear ();
+                getThumbnailCache ().clear ();
+                AssetCache.getInstance ().clear ();
+                promise.resolve (null);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void mergeAndConvert (
+            final ReadableMap options,
+            final Promise promise
+    ) {
+        try {
+            // array for storing temp file paths
+            final ArrayList<String> tempFiles = new ArrayList<String> ();
+            String fileName = getFileName (options);
+            final File outputFile = getDestinationFile (options, fileName);
+
+            ReadableArray htmlString = options.hasKey (HTML) ? options.getArray (HTML) : null;
+            if (htmlString == null || htmlString.size () == 0) {
                 promise.reject (new Exception ("RNHTMLtoPDF error: Invalid html parameter."));
+                return;
             }
 
+            final PrintAttributes pagesize = getPageSize (options);
+            final int priority = getPriority (options);
 
-            PrintAttributes pagesize = null;
-            if (options.hasKey (HEIGHT) && options.hasKey (WIDTH)) {
-                pagesize = new PrintAttributes.Builder ()
-                        .setMediaSize (new PrintAttributes.MediaSize ("custom", "CUSTOM",
-                                (int) (options.getInt (WIDTH) * 1000 / 72.0),
-                                (int) (options.getInt (HEIGHT) * 1000 / 72.0))
-                        )
-                        .setResolution (new PrintAttributes.Resolution ("RESOLUTION_ID", "RESOLUTION_ID", 600, 600))
-                        .setMinMargins (PrintAttributes.Margins.NO_MARGINS)
-                        .build ();
+            final ArrayList<HtmlSource> sections = new ArrayList<HtmlSource> ();
+            final ArrayList<Integer> pending = new ArrayList<Integer> ();
+            for (int i = 0; i < htmlString.size (); i++) {
+                // a section is either markup or a {uri} object
+                sections.add (htmlString.getType (i) == ReadableType.Map
+                        ? HtmlSource.fromUri (htmlString.getMap (i).getString (URI))
+                        : HtmlSource.fromHtml (htmlString.getString (i)));
+                tempFiles.add (getTempFile (fileName + "_" + i).getAbsolutePath ());
+                pending.add (i);
             }
 
-            for (
-                    int i = 0;
-                    i < htmlString.size ();
-                    i++
-            ) {
-                Log.d ("RNHTMLtoPDF", "convertAndMerge: " + i);
-                tempDestinationFile = getTempFile (fileName + "_" + i);
-                tempFiles.add (tempDestinationFile.getAbsolutePath ());
+            final boolean cacheSections = options.hasKey (CACHE) && options.getBoolean (CACHE);
+            // keys of the cached sections the merge reads in place
+            final List<String> pinnedKeys = new ArrayList<String> ();
+            final PostProcessOptions postProcessOptions = PostProcessOptions.fromOptions (options);
+            final JobHandle handle = startJob (options);
+            final ResultCallback callback = finishJob (handle, toCallback (promise, options, handle));
+            final boolean treeMerge = options.hasKey (MERGE_MODE) && "tree".equals (options.getString (MERGE_MODE));
+            final ExecutorService mergePool = treeMerge ? Executors.newFixedThreadPool (getMergeParallelism (options)) : null;
+            SectionMerger.Callback mergeCallback = new SectionMerger.Callback () {
+                @Override
+                public void onAppended (int appended, int total) {
+                    emitProgress (handle, PHASE_MERGING, appended, total);
+                }
+
+                @Override
+                public void onMerged (PDDocument mergedDoc) {
+                    releaseSections (pinnedKeys);
+                    try {
+                        stampAndSave (mergedDoc, outputFile, false, postProcessOptions, handle);
+                        callback.onSuccess (outputFile.getAbsolutePath ());
+                    } catch (Exception e) {
+                        callback.onFailure (e);
+                    } finally {
+                        if (mergePool != null)
+                            mergePool.shutdown ();
+                    }
+                }
+
+                @Override
+                public void onFailed (Exception error) {
+                    releaseSections (pinnedKeys);
+                    deleteFiles (tempFiles);
+                    if (mergePool != null)
+                        mergePool.shutdown ();
+                    callback.onFailure (error);
+                }
+            };
+            final SectionMerger merger;
+            if (treeMerge) {
+                int maxOpenDocuments = options.hasKey (MAX_OPEN_DOCUMENTS)
+                        ? options.getInt (MAX_OPEN_DOCUMENTS)
+                        : TreeMerger.DEFAULT_MAX_OPEN_DOCUMENTS;
+                // the main memory cap is shared by every document that may be open
+                long maxMainMemory = MemoryPolicy.getMaxMainMemory (0, postProcessOptions.maxMemoryBytes);
+                merger = new TreeMerger (sections.size (),
+                        maxMainMemory > 0
+                                ? MemoryUsageSetting.setupMixed (Math.max (1, maxMainMemory / Math.max (1, maxOpenDocuments)))
+                                : MemoryUsageSetting.setupTempFileOnly (),
+                        mergePool, getMergeParallelism (options), maxOpenDocuments,
+                        getReactApplicationContext ().getCacheDir (), handle.getMetrics (), mergeCallback);
+            } else {
+                // Merge documents sequentially to minimize memory usage
+                // The merged size isn't known up front, so the cap only depends on the free heap
+                merger = new SequentialMerger (sections.size (), postProcessOptions.getMemorySettings (0), mWorker,
+                        handle.getMetrics (), mergeCallback);
+            }
+            handle.addCancelHook (new Runnable () {
+                @Override
+                public void run () {
+                    merger.fail (JobHandle.newCancellationException ());
+                }
+            });
+            if (!cacheSections) {
                 try {
-                    convertToPDF (htmlString.getString (i),
-                            tempDestinationFile,
-                            options.hasKey (BASE_64) && options.getBoolean (BASE_64),
-                            Arguments.createMap (),
-                            promise,
-                            pagesize,
-                            mutex
-                    );
-                    mutex.acquire ();
+                    renderSections (sections, tempFiles, pending, 0, pagesize, priority, null, handle, merger);
                 } catch (Exception e) {
-                    promise.reject (e);
-                    Log.d ("RNHTMLtoPDF", "convertAndMerge error: " + e.getMessage ());
+                    merger.fail (e);
                 }
-
+                return;
             }
 
-            // Merge documents sequentially to minimize memory usage
-            MemoryUsageSetting memSettings = MemoryUsageSetting.setupTempFileOnly();
-            PDDocument mergedDoc = null;
+            mWorker.execute (new Runnable () {
+                @Override
+                public void run () {
+                    try {
+                        PdfRenderCache cache = getSectionCache ();
+                        String[] cacheKeys = new String[sections.size ()];
+                        String assetsKey = getAssetsCacheKey (handle.getAssets ());
+                        pending.clear ();
+                        for (int i = 0; i < sections.size (); i++) {
+                            cacheKeys[i] = getSectionCacheKey (sections.get (i), pagesize, assetsKey);
+                            File cached = cache.acquire (cacheKeys[i]);
+                            if (cached == null) {
+                                pending.add (i);
+                                continue;
+                            }
+                            synchronized (pinnedKeys) {
+                                pinnedKeys.add (cacheKeys[i]);
+                            }
+                            merger.offer (i, cached, false);
+                        }
+                        Log.d ("RNHTMLtoPDF", "mergeAndConvert: " + (sections.size () - pending.size ()) + " of "
+                                + sections.size () + " sections cached");
+                        renderSections (sections, tempFiles, pending, 0, pagesize, priority, cacheKeys, handle, merger);
+                    } catch (Exception e) {
+                        merger.fail (e);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            promise.reject (e);
+        }
+    }
+
+    /**
+     * Renders a document with a table of contents in one call. The body is rendered once, its
+     * {@code __TOC_ANCHOR__:name} markers are located, and only the {@code tocHtml} section is
+     * rendered with its {@code __TOC_PAGE__:name} placeholders filled in. The TOC pages are
+     * then put in front of the body.
+     */
+    @ReactMethod
+    public void convertWithToc (final ReadableMap options, final Promise promise) {
+        try {
+            String bodyHtml = options.hasKey (HTML) ? options.getString (HTML) : null;
+            if (bodyHtml == null) {
+                promise.reject (new Exception ("RNHTMLtoPDF error: Invalid htmlString parameter."));
+                return;
+            }
+            String tocHtml = options.hasKey (TOC_HTML) ? options.getString (TOC_HTML) : null;
+            if (tocHtml == null) {
+                promise.reject (new Exception ("RNHTMLtoPDF error: Invalid tocHtml parameter."));
+                return;
+            }
 
+            String fileName = getFileName (options);
+            File bodyFile = getTempFile (fileName + "_body");
+            File tocFile = getTempFile (fileName + "_toc");
+            File destinationFile = getDestinationFile (options, fileName);
+            JobHandle handle = startJob (options);
+            TocConversion conversion = new TocConversion (tocHtml, bodyFile, tocFile, destinationFile,
+                    getPageSize (options),
+                    getPriority (options),
+                    PostProcessOptions.fromOptions (options),
+                    handle,
+                    finishJob (handle, toCallback (promise, options, handle)));
             try {
-                for (int i = 0; i < tempFiles.size(); i++) {
-                    String file = tempFiles.get(i);
-                    PDDocument tempDoc = null;
+                conversion.start (bodyHtml, options.hasKey (TOC_PAGE_COUNT) ? options.getInt (TOC_PAGE_COUNT) : 1);
+            } catch (Exception e) {
+                conversion.fail (e);
+            }
+        } catch (Exception e) {
+            promise.reject (e);
+        }
+    }
 
-                    try {
-                        // Load document with memory-efficient settings
-                        tempDoc = PDDocument.load(new File(file), memSettings);
-
-                        if (mergedDoc == null) {
-                            // First document becomes the base
-                            mergedDoc = tempDoc;
-                            tempDoc = null; // Prevent closing in finally block
-                        } else {
-                            // Append subsequent documents
-                            PDFMergerUtility merger = new PDFMergerUtility();
-                            merger.appendDocument(mergedDoc, tempDoc);
-                            tempDoc.close();
-                            tempDoc = null;
-
-                            // Force garbage collection after each merge
-                            if (i % 2 == 0) { // GC every 2 documents
-                                System.gc();
+    /**
+     * The steps of {@link #convertWithToc}. WebView rendering goes through the scheduler,
+     * everything else runs on the worker executor.
+     */
+    private final class TocConversion {
+
+        /**
+         * The TOC is rendered again when it doesn't span the number of pages its page numbers
+         * were computed for. This bounds how often that may happen; a TOC that still doesn't
+         * fit fails the conversion rather than saving page numbers known to be wrong.
+         */
+        private static final int MAX_TOC_ATTEMPTS = 3;
+
+        private final String mTocHtml;
+        private final File mBodyFile;
+        private final File mTocFile;
+        private final File mDestinationFile;
+        private final PrintAttributes mPageSize;
+        private final int mPriority;
+        private final PostProcessOptions mPostProcessOptions;
+        private final JobHandle mHandle;
+        private final ResultCallback mCallback;
+        private PDDocument mBodyDoc;
+        private Map<String, AnchorExtractor.Anchor> mAnchors;
+
+        TocConversion (String tocHtml, File bodyFile, File tocFile, File destinationFile, PrintAttributes pageSize,
+                       int priority, PostProcessOptions postProcessOptions, JobHandle handle,
+                       ResultCallback callback) {
+            mTocHtml = tocHtml;
+            mBodyFile = bodyFile;
+            mTocFile = tocFile;
+            mDestinationFile = destinationFile;
+            mPageSize = pageSize;
+            mPriority = priority;
+            mPostProcessOptions = postProcessOptions;
+            mHandle = handle;
+            mCallback = callback;
+        }
+
+        void start (String bodyHtml, final int tocPages) throws Exception {
+            emitProgress (mHandle, PHASE_RENDERING, 1, 2);
+            convertToPDF (HtmlSource.fromHtml (bodyHtml), mBodyFile, mPageSize, mPriority, mHandle, new ConversionJob.Listener () {
+                @Override
+                public void onFinished (ConversionJob job) {
+                    mWorker.execute (new Runnable () {
+                        @Override
+                        public void run () {
+                            try {
+                                mHandle.throwIfCancelled ();
+                                ConversionMetrics metrics = mHandle.getMetrics ();
+                                metrics.addTempFile (mBodyFile.length ());
+                                PDFBoxResourceLoader.init (getReactApplicationContext ());
+                                long startedAt = ConversionMetrics.now ();
+                                mBodyDoc = PDDocument.load (mBodyFile,
+                                        mPostProcessOptions.getMemorySettings (mBodyFile.length ()));
+                                metrics.addStageTimeSince (ConversionMetrics.LOAD, startedAt);
+                                startedAt = ConversionMetrics.now ();
+                                mAnchors = new AnchorExtractor (TocTemplate.getAnchorNames (mTocHtml)).extract (mBodyDoc);
+                                metrics.addStageTimeSince (ConversionMetrics.ANCHORS, startedAt);
+                                renderToc (Math.max (1, tocPages), 1);
+                            } catch (Exception e) {
+                                fail (e);
                             }
                         }
-                    } finally {
-                        if (tempDoc != null) {
-                            tempDoc.close();
+                    });
+                }
+
+                @Override
+                public void onFailed (ConversionJob job, Exception error) {
+                    fail (error);
+                }
+            });
+        }
+
+        private void renderToc (final int tocPages, final int attempt) throws Exception {
+            String tocHtml = TocTemplate.fill (mTocHtml, mAnchors, tocPages);
+            emitProgress (mHandle, PHASE_RENDERING, 2, 2);
+            convertToPDF (HtmlSource.fromHtml (tocHtml), mTocFile, mPageSize, mPriority, mHandle, new ConversionJob.Listener () {
+                @Override
+                public void onFinished (ConversionJob job) {
+                    mWorker.execute (new Runnable () {
+                        @Override
+                        public void run () {
+                            try {
+                                onTocRendered (tocPages, attempt);
+                            } catch (Exception e) {
+                                fail (e);
+                            }
                         }
-                    }
+                    });
+                }
+
+                @Override
+                public void onFailed (ConversionJob job, Exception error) {
+                    fail (error);
                 }
+            });
+        }
+
+        private void onTocRendered (int tocPages, int attempt) throws Exception {
+            mHandle.throwIfCancelled ();
+            ConversionMetrics metrics = mHandle.getMetrics ();
+            long tocBytes = mTocFile.length ();
+            metrics.addTempFile (tocBytes);
+            long startedAt = ConversionMetrics.now ();
+            PDDocument tocDoc = PDDocument.load (mTocFile, mPostProcessOptions.getMemorySettings (tocBytes));
+            metrics.addStageTimeSince (ConversionMetrics.LOAD, startedAt);
+            int actualPages = tocDoc.getNumberOfPages ();
+            if (actualPages != tocPages) {
+                tocDoc.close ();
+                metrics.removeTempFile (tocBytes);
+                if (attempt >= MAX_TOC_ATTEMPTS)
+                    throw new Exception ("RNHTMLtoPDF error: The TOC spans " + actualPages + " pages when numbered for "
+                            + tocPages + " after " + attempt + " attempts.");
+                renderToc (actualPages, attempt + 1);
+                return;
+            }
+
+            try {
+                emitProgress (mHandle, PHASE_MERGING, 1, 1);
+                startedAt = ConversionMetrics.now ();
+                new PDFMergerUtility ().appendDocument (tocDoc, mBodyDoc);
+                metrics.addStageTimeSince (ConversionMetrics.MERGE, startedAt);
+            } catch (Exception e) {
+                tocDoc.close ();
+                throw e;
+            }
+            closeBody ();
+            stampAndSave (tocDoc, mDestinationFile, false, mPostProcessOptions, mHandle);
+            mBodyFile.delete ();
+            mTocFile.delete ();
+            mCallback.onSuccess (mDestinationFile.getAbsolutePath ());
+        }
+
+        private void fail (Exception error) {
+            closeBody ();
+            mBodyFile.delete ();
+            mTocFile.delete ();
+            mCallback.onFailure (error);
+        }
+
+        private void closeBody () {
+            if (mBodyDoc == null)
+                return;
+            try {
+                mBodyDoc.close ();
+            } catch (IOException ignored) {
+            }
+            mBodyDoc = null;
+        }
+    }
+
+    /**
+     * Renders the {@code pending} sections one after the other, starting at {@code position}.
+     * Every written section is handed to the merger right away, so it is appended while the
+     * next one renders. With {@code cacheKeys}, written sections are stored in the section
+     * cache first. Failures go through {@link SectionMerger#fail}.
+     */
+    private void renderSections (final List<HtmlSource> sections, final List<String> files, final List<Integer> pending,
+                                 final int position, final PrintAttributes printAttributes, final int priority,
+                                 final String[] cacheKeys, final JobHandle handle,
+                                 final SectionMerger merger) throws Exception {
+        if (position >= pending.size () || merger.isFailed ())
+            return;
 
-                // Save the merged document
-                if (mergedDoc != null) {
-                    mergedDoc.save(destinationFile);
+        final int index = pending.get (position);
+        Log.d ("RNHTMLtoPDF", "convertAndMerge: " + index);
+        emitProgress (handle, PHASE_RENDERING, index + 1, sections.size ());
+        convertToPDF (sections.get (index), new File (files.get (index)), printAttributes, priority, handle, new ConversionJob.Listener () {
+            @Override
+            public void onFinished (final ConversionJob job) {
+                handle.getMetrics ().addTempFile (job.getPdfFile ().length ());
+                if (cacheKeys == null) {
+                    merger.offer (index, job.getPdfFile (), true);
+                } else {
+                    mWorker.execute (new Runnable () {
+                        @Override
+                        public void run () {
+                            try {
+                                getSectionCache ().put (cacheKeys[index], job.getPdfFile ());
+                            } catch (IOException e) {
+                                Log.d ("RNHTMLtoPDF", "Failed to cache section " + index, e);
+                            }
+                            merger.offer (index, job.getPdfFile (), true);
+                        }
+                    });
                 }
-            } finally {
-                if (mergedDoc != null) {
-                    mergedDoc.close();
+                try {
+                    renderSections (sections, files, pending, position + 1, printAttributes, priority, cacheKeys,
+                            handle, merger);
+                } catch (Exception e) {
+                    onFailed (job, e);
+                }
+            }
+
+            @Override
+            public void onFailed (ConversionJob job, Exception error) {
+                Log.d ("RNHTMLtoPDF", "convertAndMerge error: " + error.getMessage ());
+                merger.fail (error);
+            }
+        });
+    }
+
+    /**
+     * Stamps page numbers (and the watermark) on the document and writes it to
+     * {@code destinationFile} in a single save, first collapsing duplicate resources if
+     * {@link PostProcessOptions#dedupe} is set. The document is closed afterwards.
+     *
+     * @param loadedFromDestination whether the document was loaded from {@code destinationFile},
+     *                              which allows saving the stamps as an incremental update
+     */
+    private void stampAndSave (PDDocument document, File destinationFile, boolean loadedFromDestination,
+                               PostProcessOptions options, JobHandle handle) throws IOException {
+        try {
+            handle.throwIfCancelled ();
+            emitProgress (handle, PHASE_STAMPING, 1, 1);
+            ConversionMetrics metrics = handle.getMetrics ();
+            long startedAt = ConversionMetrics.now ();
+            boolean incremental = options.incrementalSave && loadedFromDestination;
+            if (options.dedupe && !incremental) {
+                ResourceDeduplicator deduplicator = new ResourceDeduplicator ();
+                deduplicator.deduplicate (document);
+                metrics.addStageTimeSince (ConversionMetrics.DEDUPE, startedAt);
+                metrics.setDeduplicated (deduplicator.getObjectsRemoved (), deduplicator.getBytesSaved ());
+                Log.d ("RNHTMLtoPDF", "Deduplicated " + deduplicator.getObjectsRemoved () + " resources, "
+                        + deduplicator.getBytesSaved () + " bytes");
+                handle.throwIfCancelled ();
+                startedAt = ConversionMetrics.now ();
+            }
+            PDFBoxResourceLoader.init (getReactApplicationContext ());
+            new PageStamper (options.stampLayout).stamp (document, options.watermark);
+            metrics.addStageTimeSince (ConversionMetrics.STAMP, startedAt);
+            handle.throwIfCancelled ();
+            emitProgress (handle, PHASE_SAVING, 1, 1);
+            startedAt = ConversionMetrics.now ();
+            long bytesWritten;
+            if (incremental) {
+                bytesWritten = IncrementalUpdate.append (document, destinationFile);
+            } else {
+                document.save (destinationFile);
+                bytesWritten = destinationFile.length ();
+            }
+            long saveTimeMs = ConversionMetrics.now () - startedAt;
+            metrics.addStageTime (ConversionMetrics.SAVE, saveTimeMs);
+            metrics.setOutput (document.getNumberOfPages (), bytesWritten);
+            Log.d ("RNHTMLtoPDF", "Saved " + bytesWritten + " bytes in " + saveTimeMs + "ms");
+        } finally {
+            document.close ();
+        }
+    }
+
+    private static void deleteFiles (List<String> files) {
+        for (String file : files) {
+            File tempFile = new File (file);
+            tempFile.delete ();
+        }
+    }
+
+    /**
+     * Does the one-time work of the first conversion ahead of time: PDFBox resources, the
+     * metrics of the stamp font, the PDFBox save path and a pooled WebView. Resolves once
+     * everything is warm.
+     */
+    @ReactMethod
+    public void prewarm (final Promise promise) {
+        prewarmInBackground (new Runnable () {
+            @Override
+            public void run () {
+                promise.resolve (null);
+            }
+        });
+    }
+
+    /**
+     * PDFBox is warmed up on the worker executor; the WebView is created on the main thread
+     * once its message queue is idle, so that app startup isn't delayed.
+     *
+     * @param onDone run once both are warm, or {@code null}
+     */
+    void prewarmInBackground (final Runnable onDone) {
+        final long startedAt = ConversionMetrics.now ();
+        final AtomicInteger remaining = new AtomicInteger (2);
+        final Runnable partDone = new Runnable () {
+            @Override
+            public void run () {
+                if (remaining.decrementAndGet () > 0)
+                    return;
+                Log.d ("RNHTMLtoPDF", "Prewarmed in " + (ConversionMetrics.now () - startedAt) + "ms");
+                if (onDone != null)
+                    onDone.run ();
+            }
+        };
+
+        mWorker.execute (new Runnable () {
+            @Override
+            public void run () {
+                try {
+                    PDFBoxResourceLoader.init (getReactApplicationContext ());
+                    // Stamping a blank page loads the AFM metrics of the default stamp font
+                    try (PDDocument document = new PDDocument ()) {
+                        document.addPage (new PDPage ());
+                        new PageStamper (new StampLayout ()).stamp (document, true);
+                        document.save (new ByteArrayOutputStream ());
+                    }
+                } catch (Exception e) {
+                    Log.d ("RNHTMLtoPDF", "Failed to prewarm PDFBox", e);
                 }
+                partDone.run ();
             }
+        });
 
-            // Delete temp files and force garbage collection
-            for (String file : tempFiles) {
-                File tempFile = new File (file);
-                tempFile.delete ();
+        new Handler (Looper.getMainLooper ()).post (new Runnable () {
+            @Override
+            public void run () {
+                Looper.myQueue ().addIdleHandler (new MessageQueue.IdleHandler () {
+                    @Override
+                    public boolean queueIdle () {
+                        try {
+                            WebViewPool.getInstance ().prewarm (mReactContext, 1);
+                        } catch (Exception e) {
+                            Log.d ("RNHTMLtoPDF", "Failed to prewarm WebView", e);
+                        }
+                        partDone.run ();
+                        return false;
+                    }
+                });
             }
-            System.gc();
+        });
+    }
+
+    @ReactMethod
+    public void configureQueue (final ReadableMap options) {
+        PdfConverter converter = PdfConverter.getInstance ();
+        if (options.hasKey (MAX_PARALLEL_JOBS))
+            converter.setMaxParallelJobs (options.getInt (MAX_PARALLEL_JOBS));
+        if (options.hasKey (MAX_QUEUED_JOBS))
+            converter.setMaxQueuedJobs (options.getInt (MAX_QUEUED_JOBS));
+        if (options.hasKey (QUEUE_FULL_POLICY))
+            converter.setQueueFullPolicy ("wait".equals (options.getString (QUEUE_FULL_POLICY))
+                    ? PdfConverter.QueueFullPolicy.WAIT
+                    : PdfConverter.QueueFullPolicy.REJECT);
+    }
 
-            // Use try-with-resources for automatic memory management of PDDocument
-            try (PDDocument newPdf = PDDocument.load (destinationFile, MemoryUsageSetting.setupTempFileOnly ())) {
-                PDFBoxResourceLoader.init (getReactApplicationContext ());
-                boolean watermark = false;
-                if (options.hasKey (WATERMARK)) {
-                    watermark = options.getBoolean (WATERMARK);
+    @ReactMethod
+    public void setWebViewPoolSize (final int size) {
+        new Handler (Looper.getMainLooper ()).post (new Runnable () {
+            @Override
+            public void run () {
+                WebViewPool.getInstance ().setMaxSize (size);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void getWebViewPoolStats (final Promise promise) {
+        WebViewPool pool = WebViewPool.getInstance ();
+        WritableMap stats = Arguments.createMap ();
+        stats.putInt ("hits", pool.getHitCount ());
+        stats.putInt ("misses", pool.getMissCount ());
+        stats.putInt ("idle", pool.getIdleCount ());
+        stats.putInt ("maxSize", pool.getMaxSize ());
+        promise.resolve (stats);
+    }
+
+    /**
+     * Submits a WebView conversion that is tracked by {@code handle} until it finishes, so
+     * that cancelling the handle cancels it. The job is queued from the worker executor, so
+     * that a full queue with the {@code wait} policy blocks neither the native modules thread
+     * nor the main thread, where jobs finish and follow-up sections are submitted. Failures
+     * to queue are reported to {@code listener}.
+     */
+    private ConversionJob convertToPDF (HtmlSource source, File file, PrintAttributes printAttributes, int priority,
+                                       final JobHandle handle, final ConversionJob.Listener listener) throws Exception {
+        return convertToPDF (source, file, printAttributes, priority, handle, null, listener);
+    }
+
+    /**
+     * With a {@code consumer}, the WebView writes into a pipe the consumer reads instead of
+     * into {@code file}.
+     */
+    private ConversionJob convertToPDF (HtmlSource source, File file, PrintAttributes printAttributes, int priority,
+                                       final JobHandle handle, ConversionJob.StreamConsumer consumer,
+                                       final ConversionJob.Listener listener) throws Exception {
+        final ConversionJob job = source.newJob (file)
+                .streamTo (consumer)
+                .setAssets (handle.getAssets ())
+                .setReadiness (handle.getReadiness ())
+                .setPages (handle.getPages ())
+                .setPdfPrintAttrs (printAttributes)
+                .setPriority (priority)
+                .setListener (new ConversionJob.Listener () {
+                    @Override
+                    public void onFinished (ConversionJob job) {
+                        handle.untrack (job);
+                        handle.getMetrics ().addRender (job);
+                        listener.onFinished (job);
+                    }
+
+                    @Override
+                    public void onFailed (ConversionJob job, Exception error) {
+                        handle.untrack (job);
+                        listener.onFailed (job, error);
+                    }
+                });
+        handle.track (job);
+        mWorker.execute (new Runnable () {
+            @Override
+            public void run () {
+                try {
+                    PdfConverter.getInstance ().submit (mReactContext, job);
+                } catch (Exception e) {
+                    handle.untrack (job);
+                    listener.onFailed (job, e);
                 }
-                // Use optimized page numbering method
-                addPageNumbersOptimized(newPdf, watermark);
-                newPdf.save (destinationFile);
             }
-            promise.resolve (destinationFile.getAbsolutePath ());
+        });
+        return job;
+    }
 
-        } catch (Exception e) {
-            promise.reject (e);
+    /**
+     * The {@code htmlUri} of the options if set, otherwise their {@code html}, or {@code null}.
+     */
+    private HtmlSource getHtmlSource (ReadableMap options) throws Exception {
+        if (options.hasKey (HTML_URI))
+            return HtmlSource.fromUri (options.getString (HTML_URI));
+        return options.hasKey (HTML) ? HtmlSource.fromHtml (options.getString (HTML)) : null;
+    }
+
+    /**
+     * The {@code assets} of the options as a map from URL to local source, or {@code null}.
+     */
+    private static Map<String, String> getAssets (ReadableMap options) {
+        return options.hasKey (ASSETS) && !options.isNull (ASSETS) ? toStringMap (options.getMap (ASSETS)) : null;
+    }
+
+    private static Map<String, String> toStringMap (ReadableMap map) {
+        Map<String, String> result = new HashMap<> ();
+        ReadableMapKeySetIterator keys = map.keySetIterator ();
+        while (keys.hasNextKey ()) {
+            String key = keys.nextKey ();
+            result.put (key, map.getString (key));
+        }
+        return result;
+    }
+
+    /**
+     * What the WebView waits for before printing: the {@code waitFor} conditions
+     * ({@code fonts}, {@code images}, {@code signal}), {@code readyTimeoutMs} (30 s by default
+     * with conditions, none without) and {@code maxReloads}.
+     */
+    private static Readiness getReadiness (ReadableMap options) throws Exception {
+        int conditions = 0;
+        if (options.hasKey (WAIT_FOR) && !options.isNull (WAIT_FOR)) {
+            ReadableArray waitFor = options.getArray (WAIT_FOR);
+            for (int i = 0; i < waitFor.size (); i++) {
+                String condition = waitFor.getString (i);
+                if ("fonts".equals (condition))
+                    conditions |= Readiness.FONTS;
+                else if ("images".equals (condition))
+                    conditions |= Readiness.IMAGES;
+                else if ("signal".equals (condition))
+                    conditions |= Readiness.SIGNAL;
+                else
+                    throw new Exception ("RNHTMLtoPDF error: Invalid waitFor parameter " + condition);
+            }
+        }
+        // without conditions there's nothing that could stall, so only an explicit timeout applies
+        long timeoutMs = options.hasKey (READY_TIMEOUT_MS)
+                ? (long) options.getDouble (READY_TIMEOUT_MS)
+                : conditions != 0 ? Readiness.DEFAULT_TIMEOUT_MS : Readiness.NO_TIMEOUT;
+        int maxReloads = options.hasKey (MAX_RELOADS) ? options.getInt (MAX_RELOADS) : Readiness.DEFAULT_MAX_RELOADS;
+        return new Readiness (conditions, timeoutMs, maxReloads);
+    }
+
+    /**
+     * The {@code pages} of the options: one-based page numbers and {@code [first, last]}
+     * ranges, converted to the zero-based ranges of the print framework.
+     */
+    private static PageRange[] getPageRanges (ReadableMap options) throws Exception {
+        ReadableArray pages = options.getArray (PAGES);
+        if (pages == null || pages.size () == 0)
+            throw new Exception ("RNHTMLtoPDF error: Invalid pages parameter.");
+        PageRange[] ranges = new PageRange[pages.size ()];
+        for (int i = 0; i < pages.size (); i++) {
+            int first;
+            int last;
+            if (pages.getType (i) == ReadableType.Array) {
+                ReadableArray range = pages.getArray (i);
+                if (range.size () != 2)
+                    throw new Exception ("RNHTMLtoPDF error: Invalid page range at index " + i);
+                first = range.getInt (0);
+                last = range.getInt (1);
+            } else {
+                first = last = pages.getInt (i);
+            }
+            if (first < 1 || last < first)
+                throw new Exception ("RNHTMLtoPDF error: Invalid page range at index " + i);
+            ranges[i] = new PageRange (first - 1, last - 1);
+        }
+        return ranges;
+    }
+
+    /**
+     * Groups merged at the same time by {@code mergeMode: 'tree'}.
+     */
+    private static int getMergeParallelism (ReadableMap options) {
+        int parallelism = options.hasKey (PARALLELISM)
+                ? options.getInt (PARALLELISM)
+                : Math.min (4, Runtime.getRuntime ().availableProcessors ());
+        return Math.max (1, parallelism);
+    }
+
+    private int getPriority (ReadableMap options) {
+        return options.hasKey (PRIORITY) ? options.getInt (PRIORITY) : 0;
+    }
+
+    private String getFileName (ReadableMap options) throws Exception {
+        if (!options.hasKey (FILE_NAME))
+            return PDF_PREFIX + UUID.randomUUID ().toString ();
+
+        String fileName = options.getString (FILE_NAME);
+        if (!isFileNameValid (fileName))
+            throw new Exception ("RNHTMLtoPDF error: Invalid fileName parameter.");
+        return fileName;
+    }
+
+    private File getDestinationFile (ReadableMap options, String fileName) throws Exception {
+        if (!options.hasKey (DIRECTORY))
+            return getTempFile (fileName);
+
+        File path = new File (Environment.getExternalStoragePublicDirectory (Environment.DIRECTORY_DOCUMENTS), options.getString (DIRECTORY));
+        if (!path.exists ()) {
+            if (!path.mkdirs ()) {
+                throw new Exception ("RNHTMLtoPDF error: Could not create folder structure.");
+            }
         }
+        return new File (path, fileName + PDF_EXTENSION);
     }
 
+    private PrintAttributes getPageSize (ReadableMap options) {
+        if (!options.hasKey (HEIGHT) || !options.hasKey (WIDTH))
+            return null;
 
-    private void convertToPDF (String htmlString, File file, boolean shouldEncode, WritableMap resultMap, Promise promise,
-                               PrintAttributes printAttributes,
-                               Semaphore mutex
-    ) throws Exception {
-        PdfConverter pdfConverter = PdfConverter.getInstance ();
-        if (printAttributes != null) pdfConverter.setPdfPrintAttrs (printAttributes);
-        pdfConverter.convert (mReactContext, htmlString, file, shouldEncode, resultMap, promise, mutex);
+        return new PrintAttributes.Builder ()
+                .setMediaSize (new PrintAttributes.MediaSize ("custom", "CUSTOM",
+                        (int) (options.getInt (WIDTH) * 1000 / 72.0),
+                        (int) (options.getInt (HEIGHT) * 1000 / 72.0))
+                )
+                .setResolution (new PrintAttributes.Resolution ("RESOLUTION_ID", "RESOLUTION_ID", 600, 600))
+                .setMinMargins (PrintAttributes.Margins.NO_MARGINS)
+                .build ();
     }
 
     private File getTempFile (String fileName) throws IOException {
@@ -302,100 +1640,102 @@ public class RNHTMLtoPDFModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void extractAnchorPages(final String filePath, final ReadableArray anchors, final Promise promise) {
-        try {
-            if (filePath == null) {
-                promise.reject(new Exception("RNHTMLtoPDF error: Invalid filePath parameter."));
-                return;
-            }
-            PDFBoxResourceLoader.init (getReactApplicationContext ());
-            PDDocument document = PDDocument.load(new File(filePath), MemoryUsageSetting.setupTempFileOnly ());
-            com.tom_roush.pdfbox.text.PDFTextStripper stripper = new com.tom_roush.pdfbox.text.PDFTextStripper();
-            int pageCount = document.getNumberOfPages();
-
-            // Build a quick lookup for anchors
-            java.util.HashMap<String, Integer> result = new java.util.HashMap<>();
-            java.util.HashSet<String> remaining = new java.util.HashSet<>();
-            for (int i = 0; i < anchors.size(); i++) {
-                String a = anchors.getString(i);
-                remaining.add(a);
-            }
-
-            for (int page = 1; page <= pageCount && !remaining.isEmpty(); page++) {
-                stripper.setStartPage(page);
-                stripper.setEndPage(page);
-                String text = stripper.getText(document);
-                if (text == null) text = "";
-                for (String a : new java.util.ArrayList<>(remaining)) {
-                    String needle = "__TOC_ANCHOR__:" + a;
-                    if (text.contains(needle)) {
-                        result.put(a, page);
-                        remaining.remove(a);
+        if (filePath == null) {
+            promise.reject(new Exception("RNHTMLtoPDF error: Invalid filePath parameter."));
+            return;
+        }
+        final HashSet<String> wanted = new HashSet<>();
+        for (int i = 0; i < anchors.size(); i++) {
+            wanted.add(anchors.getString(i));
+        }
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Map<String, AnchorExtractor.Anchor> result = extractAnchors(filePath, wanted, MemoryPolicy.AUTO);
+                    WritableMap map = Arguments.createMap();
+                    for (AnchorExtractor.Anchor anchor : result.values()) {
+                        map.putInt(anchor.name, anchor.page);
                     }
+                    promise.resolve(map);
+                } catch (Exception e) {
+                    promise.reject(e);
                 }
             }
-            document.close();
-
-            WritableMap map = Arguments.createMap();
-            for (java.util.Map.Entry<String, Integer> e : result.entrySet()) {
-                map.putInt(e.getKey(), e.getValue());
-            }
-            promise.resolve(map);
-        } catch (Exception e) {
-            promise.reject(e);
-        }
+        });
     }
 
     /**
-     * Optimized method to add page numbers and watermarks to PDF pages
-     * Reduces performance overhead by pre-calculating values and minimizing repetitive operations
+     * Like {@link #extractAnchorPages}, but indexes every anchor marker of the document unless
+     * {@code anchors} is given, and optionally reports where on the page each marker sits.
+     * With {@code parallelism} above 1, page ranges are extracted on several cores.
+     * Resolves {@code { pages: { name: page }, positions?: { name: { page, x, y } } }}.
      */
-    private void addPageNumbersOptimized(PDDocument document, boolean watermark) throws IOException {
-        if (document == null || document.getNumberOfPages() == 0) {
+    @ReactMethod
+    public void extractAnchorIndex(final String filePath, final ReadableMap options, final Promise promise) {
+        if (filePath == null) {
+            promise.reject(new Exception("RNHTMLtoPDF error: Invalid filePath parameter."));
             return;
         }
-
-        // Pre-calculate values outside the loop for better performance
-        PDFont pdfFont = PDType1Font.HELVETICA;
-        int fontSize = 15;
-        String watermarkText = "Powered by Waveform - Upgrade to remove";
-        float titleWidth = watermark ? pdfFont.getStringWidth(watermarkText) / 1000 * fontSize : 0;
-        int totalPages = document.getNumberOfPages();
-        String totalPagesStr = " of " + totalPages;
-
-        // Pre-allocate StringBuilder for string concatenation efficiency
-        StringBuilder pageNumberBuilder = new StringBuilder();
-
-        // Loop through all pages with optimizations
-        for (int i = 0; i < totalPages; i++) {
-            PDPage page = document.getPage(i);
-
-            // Use try-with-resources for automatic resource management
-            try (PDPageContentStream contentStream = new PDPageContentStream(document, page,
-                    PDPageContentStream.AppendMode.APPEND, true, true)) {
-
-                // Set font and color once per page (unavoidable due to PDFBox API)
-                contentStream.setFont(pdfFont, fontSize);
-                contentStream.setNonStrokingColor(0f, 0.4f, 0.604f);
-
-                // Optimize page number string building
-                pageNumberBuilder.setLength(0); // Clear previous content
-                pageNumberBuilder.append("Page ").append(i + 1).append(totalPagesStr);
-
-                // Add page number
-                contentStream.beginText();
-                contentStream.newLineAtOffset(25, 15);
-                contentStream.showText(pageNumberBuilder.toString());
-                contentStream.endText();
-
-                // Add watermark if enabled
-                if (watermark) {
-                    float watermarkX = page.getMediaBox().getWidth() - titleWidth - 15;
-                    contentStream.beginText();
-                    contentStream.newLineAtOffset(watermarkX, 15);
-                    contentStream.showText(watermarkText);
-                    contentStream.endText();
+        HashSet<String> wanted = null;
+        if (options.hasKey(ANCHORS)) {
+            ReadableArray anchors = options.getArray(ANCHORS);
+            wanted = new HashSet<>();
+            for (int i = 0; i < anchors.size(); i++) {
+                wanted.add(anchors.getString(i));
+            }
+        }
+        final HashSet<String> wantedAnchors = wanted;
+        final boolean withPositions = options.hasKey(POSITIONS) && options.getBoolean(POSITIONS);
+        final int parallelism = options.hasKey(PARALLELISM) ? options.getInt(PARALLELISM) : 1;
+        final long maxMemoryBytes = options.hasKey(MAX_MEMORY_BYTES)
+                ? (long) options.getDouble(MAX_MEMORY_BYTES)
+                : MemoryPolicy.AUTO;
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Map<String, AnchorExtractor.Anchor> result;
+                    if (parallelism > 1 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                        PDFBoxResourceLoader.init(getReactApplicationContext());
+                        File file = new File(filePath);
+                        result = new ParallelAnchorExtractor(parallelism,
+                                MemoryPolicy.getMaxMainMemory(file.length(), maxMemoryBytes))
+                                .extract(file, wantedAnchors);
+                    } else {
+                        result = extractAnchors(filePath, wantedAnchors, maxMemoryBytes);
+                    }
+                    WritableMap pages = Arguments.createMap();
+                    WritableMap positions = Arguments.createMap();
+                    for (AnchorExtractor.Anchor anchor : result.values()) {
+                        pages.putInt(anchor.name, anchor.page);
+                        if (withPositions) {
+                            WritableMap position = Arguments.createMap();
+                            position.putInt("page", anchor.page);
+                            position.putDouble("x", anchor.x);
+                            position.putDouble("y", anchor.y);
+                            positions.putMap(anchor.name, position);
+                        }
+                    }
+                    WritableMap index = Arguments.createMap();
+                    index.putMap("pages", pages);
+                    if (withPositions) {
+                        index.putMap("positions", positions);
+                    }
+                    promise.resolve(index);
+                } catch (Exception e) {
+                    promise.reject(e);
                 }
             }
+        });
+    }
+
+    private Map<String, AnchorExtractor.Anchor> extractAnchors(String filePath, Set<String> wanted,
+                                                               long maxMemoryBytes) throws IOException {
+        PDFBoxResourceLoader.init(getReactApplicationContext());
+        File file = new File(filePath);
+        try (PDDocument document = PDDocument.load(file, MemoryPolicy.choose(file.length(), maxMemoryBytes))) {
+            return new AnchorExtractor(wanted).extract(document);
         }
     }
 }
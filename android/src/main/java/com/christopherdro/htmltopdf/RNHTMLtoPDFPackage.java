@@ -12,6 +12,20 @@ import java.util.List;
 
 public class RNHTMLtoPDFPackage implements ReactPackage {
 
+    private final boolean mPrewarm;
+
+    public RNHTMLtoPDFPackage() {
+        this(false);
+    }
+
+    /**
+     * @param prewarm whether to warm up PDFBox and a WebView in the background as soon as
+     *                the module is created, so that the first conversion runs at warm speed
+     */
+    public RNHTMLtoPDFPackage(boolean prewarm) {
+        mPrewarm = prewarm;
+    }
+
     public List<Class<? extends JavaScriptModule>> createJSModules() {
         return Collections.emptyList();
     }
@@ -24,7 +38,11 @@ public class RNHTMLtoPDFPackage implements ReactPackage {
     @Override
     public List<NativeModule> createNativeModules(ReactApplicationContext reactContext) {
         List<NativeModule> modules = new ArrayList<>();
-        modules.add(new RNHTMLtoPDFModule(reactContext));
+        RNHTMLtoPDFModule module = new RNHTMLtoPDFModule(reactContext);
+        if (mPrewarm) {
+            module.prewarmInBackground(null);
+        }
+        modules.add(module);
         return modules;
     }
 }
@@ -0,0 +1,231 @@
+package com.christopherdro.htmltopdf;
+
+import com.tom_roush.pdfbox.cos.COSArray;
+import com.tom_roush.pdfbox.cos.COSBase;
+import com.tom_roush.pdfbox.cos.COSDictionary;
+import com.tom_roush.pdfbox.cos.COSName;
+import com.tom_roush.pdfbox.cos.COSObject;
+import com.tom_roush.pdfbox.cos.COSStream;
+import com.tom_roush.pdfbox.cos.COSString;
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+import com.tom_roush.pdfbox.pdmodel.PDPage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collapses identical page resources into one shared object.
+ * <p>
+ * Every section of a merged document carries its own copy of the images, fonts and
+ * graphics states it uses, even when they are byte for byte the same as those of the other
+ * sections. Each resource is hashed over its raw stream data and its dictionary, with the
+ * objects it refers to hashed the same way, and the resource dictionaries of all pages and
+ * form XObjects are pointed at the first resource with the same hash. The copies are then
+ * no longer referenced and are left out when the document is saved.
+ */
+class ResourceDeduplicator {
+
+    private static final Charset UTF_8 = Charset.forName ("UTF-8");
+    private static final COSName[] CATEGORIES = {
+            COSName.XOBJECT, COSName.FONT, COSName.EXT_G_STATE, COSName.COLORSPACE, COSName.PATTERN,
+            COSName.SHADING
+    };
+
+    /**
+     * Hashes of the objects seen so far, by identity.
+     */
+    private final Map<COSBase, String> mHashes = new IdentityHashMap<> ();
+    /**
+     * Objects whose hash is being computed, to detect reference cycles.
+     */
+    private final Set<COSBase> mHashing = Collections.newSetFromMap (new IdentityHashMap<COSBase, Boolean> ());
+    /**
+     * The object kept for every hash.
+     */
+    private final Map<String, COSBase> mCanonical = new HashMap<> ();
+    private final Set<COSBase> mKept = Collections.newSetFromMap (new IdentityHashMap<COSBase, Boolean> ());
+    private final Set<COSBase> mVisitedResources = Collections.newSetFromMap (new IdentityHashMap<COSBase, Boolean> ());
+    private final Set<COSBase> mRemoved = Collections.newSetFromMap (new IdentityHashMap<COSBase, Boolean> ());
+    private int mObjectsRemoved;
+    private long mBytesSaved;
+
+    /**
+     * Deduplicates the resources of every page of {@code document}.
+     */
+    void deduplicate (PDDocument document) throws IOException {
+        for (PDPage page : document.getPages ()) {
+            COSBase resources = page.getCOSObject ().getDictionaryObject (COSName.RESOURCES);
+            if (resources instanceof COSDictionary)
+                deduplicate ((COSDictionary) resources);
+        }
+    }
+
+    /**
+     * Number of resources that now point at an identical one.
+     */
+    int getObjectsRemoved () {
+        return mObjectsRemoved;
+    }
+
+    /**
+     * Raw stream bytes that are no longer referenced, an estimate of how much smaller the
+     * saved file is.
+     */
+    long getBytesSaved () {
+        return mBytesSaved;
+    }
+
+    private void deduplicate (COSDictionary resources) throws IOException {
+        if (!mVisitedResources.add (resources))
+            return;
+        for (COSName category : CATEGORIES) {
+            COSBase entries = resources.getDictionaryObject (category);
+            if (!(entries instanceof COSDictionary))
+                continue;
+            COSDictionary dictionary = (COSDictionary) entries;
+            for (COSName name : new ArrayList<> (dictionary.keySet ())) {
+                COSBase resource = dictionary.getDictionaryObject (name);
+                if (resource == null)
+                    continue;
+                // nested resources first, so that forms using the same resources hash the same
+                if (resource instanceof COSStream && COSName.FORM.equals (((COSStream) resource).getCOSName (COSName.SUBTYPE))) {
+                    COSBase formResources = ((COSStream) resource).getDictionaryObject (COSName.RESOURCES);
+                    if (formResources instanceof COSDictionary)
+                        deduplicate ((COSDictionary) formResources);
+                }
+                String hash = hash (resource);
+                if (hash == null)
+                    continue;
+                COSBase canonical = mCanonical.get (hash);
+                if (canonical == null) {
+                    mCanonical.put (hash, resource);
+                    mKept.add (resource);
+                } else if (canonical != resource) {
+                    dictionary.setItem (name, canonical);
+                    if (mRemoved.add (resource)) {
+                        mObjectsRemoved++;
+                        mBytesSaved += getStreamBytes (resource, Collections.newSetFromMap (new IdentityHashMap<COSBase, Boolean> ()));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes an object and everything it refers to, or returns {@code null} for objects
+     * that refer back to themselves.
+     */
+    private String hash (COSBase object) throws IOException {
+        if (object instanceof COSObject)
+            object = ((COSObject) object).getObject ();
+        if (object == null)
+            return "null";
+        if (!(object instanceof COSDictionary) && !(object instanceof COSArray))
+            return object.getClass ().getSimpleName () + ":" + describe (object);
+
+        String known = mHashes.get (object);
+        if (known != null)
+            return known;
+        if (!mHashing.add (object))
+            return null;
+        try {
+            MessageDigest digest = newDigest ();
+            if (object instanceof COSArray) {
+                update (digest, "array");
+                for (COSBase item : (COSArray) object) {
+                    String itemHash = hash (item);
+                    if (itemHash == null)
+                        return null;
+                    update (digest, itemHash);
+                }
+            } else {
+                update (digest, object instanceof COSStream ? "stream" : "dictionary");
+                COSDictionary dictionary = (COSDictionary) object;
+                List<COSName> keys = new ArrayList<> (dictionary.keySet ());
+                Collections.sort (keys);
+                for (COSName key : keys) {
+                    // the length follows from the data, which is hashed itself
+                    if (object instanceof COSStream && COSName.LENGTH.equals (key))
+                        continue;
+                    String valueHash = hash (dictionary.getItem (key));
+                    if (valueHash == null)
+                        return null;
+                    update (digest, key.getName ());
+                    update (digest, valueHash);
+                }
+                if (object instanceof COSStream)
+                    updateWithData (digest, (COSStream) object);
+            }
+            String hash = PdfRenderCache.toHex (digest.digest ());
+            mHashes.put (object, hash);
+            return hash;
+        } finally {
+            mHashing.remove (object);
+        }
+    }
+
+    private static String describe (COSBase object) {
+        if (object instanceof COSName)
+            return ((COSName) object).getName ();
+        if (object instanceof COSString)
+            return ((COSString) object).toHexString ();
+        return object.toString ();
+    }
+
+    private static void updateWithData (MessageDigest digest, COSStream stream) throws IOException {
+        try (InputStream data = stream.createRawInputStream ()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = data.read (buffer)) != -1) {
+                digest.update (buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * Raw length of the streams {@code object} refers to that are not kept elsewhere.
+     */
+    private long getStreamBytes (COSBase object, Set<COSBase> visited) {
+        if (object instanceof COSObject)
+            object = ((COSObject) object).getObject ();
+        if (object == null || !visited.add (object) || mKept.contains (object))
+            return 0;
+        long bytes = 0;
+        if (object instanceof COSArray) {
+            for (COSBase item : (COSArray) object) {
+                bytes += getStreamBytes (item, visited);
+            }
+        } else if (object instanceof COSDictionary) {
+            COSDictionary dictionary = (COSDictionary) object;
+            if (object instanceof COSStream)
+                bytes += dictionary.getLong (COSName.LENGTH, 0);
+            for (COSName key : dictionary.keySet ()) {
+                bytes += getStreamBytes (dictionary.getItem (key), visited);
+            }
+        }
+        return bytes;
+    }
+
+    private static MessageDigest newDigest () {
+        try {
+            return MessageDigest.getInstance ("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException (e);
+        }
+    }
+
+    private static void update (MessageDigest digest, String value) {
+        digest.update (value.getBytes (UTF_8));
+        digest.update ((byte) 0);
+    }
+}
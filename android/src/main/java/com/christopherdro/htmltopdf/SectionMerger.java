@@ -0,0 +1,49 @@
+package com.christopherdro.htmltopdf;
+
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+
+import java.io.File;
+
+/**
+ * Merges the rendered section PDFs of {@code mergeAndConvert} into one document, in section
+ * order, while the remaining sections are still rendering.
+ *
+ * @see SequentialMerger
+ * @see TreeMerger
+ */
+interface SectionMerger {
+
+    interface Callback {
+        /**
+         * Called on the executor after sections have been appended.
+         */
+        void onAppended (int appended, int total);
+
+        /**
+         * Called on the executor once every section has been merged. The callback owns the
+         * merged document and must close it.
+         */
+        void onMerged (PDDocument mergedDoc);
+
+        /**
+         * Called once, on the thread that failed the merge.
+         */
+        void onFailed (Exception error);
+    }
+
+    /**
+     * Hands over a rendered section. Sections may be offered from any thread and in any order.
+     *
+     * @param temporary whether the file should be deleted once it has been merged
+     */
+    void offer (int index, File file, boolean temporary);
+
+    boolean isFailed ();
+
+    /**
+     * Stops merging, for instance because a section failed to render or the conversion was
+     * cancelled. Temporary sections that have not been merged yet are deleted and the
+     * callback is told about {@code error}, unless the merge already finished or failed.
+     */
+    void fail (Exception error);
+}
@@ -0,0 +1,177 @@
+package com.christopherdro.htmltopdf;
+
+import com.tom_roush.pdfbox.io.MemoryUsageSetting;
+import com.tom_roush.pdfbox.multipdf.PDFMergerUtility;
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Appends rendered section PDFs to a growing merged document as soon as they are offered,
+ * so that merging section N overlaps with the WebView rendering section N + 1.
+ * <p>
+ * Sections may be offered from any thread and in any order; they are always appended in
+ * index order, one at a time, on the given executor. Temporary section files are deleted as
+ * soon as they have been appended.
+ */
+class SequentialMerger implements SectionMerger {
+
+    private final Executor mExecutor;
+    private final MemoryUsageSetting mMemSettings;
+    private final Callback mCallback;
+    private final ConversionMetrics mMetrics;
+    private final File[] mSections;
+    private final boolean[] mTemporary;
+    private int mNextIndex;
+    private boolean mDraining;
+    private boolean mFailed;
+    private PDDocument mMergedDoc;
+
+    private final Runnable mDrain = new Runnable () {
+        @Override
+        public void run () {
+            drain ();
+        }
+    };
+
+    /**
+     * @param metrics receives the merge time and the release of temporary section files
+     */
+    SequentialMerger (int sectionCount, MemoryUsageSetting memSettings, Executor executor, ConversionMetrics metrics,
+                   Callback callback) {
+        mSections = new File[sectionCount];
+        mTemporary = new boolean[sectionCount];
+        mMemSettings = memSettings;
+        mExecutor = executor;
+        mCallback = callback;
+        mMetrics = metrics;
+    }
+
+    @Override
+    public synchronized void offer (int index, File file, boolean temporary) {
+        if (mFailed) {
+            if (temporary)
+                file.delete ();
+            return;
+        }
+        mSections[index] = file;
+        mTemporary[index] = temporary;
+        if (!mDraining && index == mNextIndex) {
+            mDraining = true;
+            mExecutor.execute (mDrain);
+        }
+    }
+
+    @Override
+    public synchronized boolean isFailed () {
+        return mFailed;
+    }
+
+    @Override
+    public void fail (Exception error) {
+        synchronized (this) {
+            if (mFailed || mNextIndex > mSections.length)
+                return;
+            mFailed = true;
+            for (int i = mNextIndex; i < mSections.length; i++) {
+                if (mSections[i] != null) {
+                    if (mTemporary[i])
+                        mSections[i].delete ();
+                    mSections[i] = null;
+                }
+            }
+            if (!mDraining)
+                closeMergedDoc ();
+        }
+        mCallback.onFailed (error);
+    }
+
+    private void drain () {
+        while (true) {
+            File file;
+            boolean temporary;
+            int index;
+            synchronized (this) {
+                if (mFailed) {
+                    mDraining = false;
+                    closeMergedDoc ();
+                    return;
+                }
+                if (mNextIndex >= mSections.length || mSections[mNextIndex] == null) {
+                    mDraining = false;
+                    return;
+                }
+                index = mNextIndex;
+                file = mSections[index];
+                temporary = mTemporary[index];
+                mSections[index] = null;
+                mNextIndex++;
+            }
+
+            long startedAt = ConversionMetrics.now ();
+            long length = file.length ();
+            try {
+                append (file);
+                mMetrics.addStageTimeSince (ConversionMetrics.MERGE, startedAt);
+            } catch (Exception e) {
+                synchronized (this) {
+                    mDraining = false;
+                }
+                fail (e);
+                return;
+            } finally {
+                if (temporary && file.delete ())
+                    mMetrics.removeTempFile (length);
+            }
+
+            mCallback.onAppended (index + 1, mSections.length);
+            if (index == mSections.length - 1) {
+                PDDocument mergedDoc;
+                synchronized (this) {
+                    if (mFailed) {
+                        mDraining = false;
+                        closeMergedDoc ();
+                        return;
+                    }
+                    mDraining = false;
+                    mergedDoc = mMergedDoc;
+                    mMergedDoc = null;
+                    // past the last section: the merge is done and can no longer fail
+                    mNextIndex++;
+                }
+                mCallback.onMerged (mergedDoc);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends one section. The section document is closed right after, which releases its
+     * scratch buffers and temp file, so no garbage collection has to be forced.
+     */
+    private void append (File file) throws IOException {
+        PDDocument tempDoc = PDDocument.load (file, mMemSettings);
+        if (mMergedDoc == null) {
+            // First document becomes the base
+            mMergedDoc = tempDoc;
+            return;
+        }
+        try {
+            new PDFMergerUtility ().appendDocument (mMergedDoc, tempDoc);
+        } finally {
+            tempDoc.close ();
+        }
+    }
+
+    private void closeMergedDoc () {
+        if (mMergedDoc == null)
+            return;
+        try {
+            mMergedDoc.close ();
+        } catch (IOException ignored) {
+        }
+        mMergedDoc = null;
+    }
+}
@@ -0,0 +1,97 @@
+package com.christopherdro.htmltopdf;
+
+import com.tom_roush.pdfbox.pdmodel.font.PDFont;
+import com.tom_roush.pdfbox.pdmodel.font.PDType1Font;
+
+/**
+ * Where and how {@link PageStamper} draws the page number footer and the watermark.
+ * <p>
+ * Coordinates are in PDF points from the bottom left corner of the page. The template may
+ * contain {@code {page}} and {@code {total}} placeholders.
+ */
+class StampLayout {
+
+    static final String DEFAULT_TEMPLATE = "Page {page} of {total}";
+    static final String DEFAULT_WATERMARK_TEXT = "Powered by Waveform - Upgrade to remove";
+
+    PDFont font = PDType1Font.HELVETICA;
+    float fontSize = 15;
+    float red = 0f;
+    float green = 0.4f;
+    float blue = 0.604f;
+    float x = 25;
+    float y = 15;
+    String template = DEFAULT_TEMPLATE;
+    String watermarkText = DEFAULT_WATERMARK_TEXT;
+    /**
+     * Distance between the end of the watermark and the right edge of the page.
+     */
+    float watermarkMargin = 15;
+
+    /**
+     * Describes the layout for cache keys: equal descriptions produce equal stamps.
+     */
+    String describe () {
+        return font.getName () + "|" + fontSize + "|" + red + "," + green + "," + blue + "|" + x + "," + y
+                + "|" + template + "|" + watermarkText + "|" + watermarkMargin;
+    }
+
+    /**
+     * Sets the colour from a {@code #RRGGBB} string.
+     */
+    void setColor (String hex) {
+        String value = hex.startsWith ("#") ? hex.substring (1) : hex;
+        if (value.length () != 6)
+            throw new IllegalArgumentException ("RNHTMLtoPDF error: Invalid stamp color " + hex);
+        int rgb = Integer.parseInt (value, 16);
+        red = ((rgb >> 16) & 0xFF) / 255f;
+        green = ((rgb >> 8) & 0xFF) / 255f;
+        blue = (rgb & 0xFF) / 255f;
+    }
+
+    /**
+     * Sets the font from the name of one of the standard 14 PDF fonts.
+     */
+    void setFont (String name) {
+        switch (name) {
+            case "Helvetica":
+                font = PDType1Font.HELVETICA;
+                break;
+            case "Helvetica-Bold":
+                font = PDType1Font.HELVETICA_BOLD;
+                break;
+            case "Helvetica-Oblique":
+                font = PDType1Font.HELVETICA_OBLIQUE;
+                break;
+            case "Helvetica-BoldOblique":
+                font = PDType1Font.HELVETICA_BOLD_OBLIQUE;
+                break;
+            case "Times-Roman":
+                font = PDType1Font.TIMES_ROMAN;
+                break;
+            case "Times-Bold":
+                font = PDType1Font.TIMES_BOLD;
+                break;
+            case "Times-Italic":
+                font = PDType1Font.TIMES_ITALIC;
+                break;
+            case "Times-BoldItalic":
+                font = PDType1Font.TIMES_BOLD_ITALIC;
+                break;
+            case "Courier":
+                font = PDType1Font.COURIER;
+                break;
+            case "Courier-Bold":
+                font = PDType1Font.COURIER_BOLD;
+                break;
+            case "Courier-Oblique":
+                font = PDType1Font.COURIER_OBLIQUE;
+                break;
+            case "Courier-BoldOblique":
+                font = PDType1Font.COURIER_BOLD_OBLIQUE;
+                break;
+            default:
+                throw new IllegalArgumentException ("RNHTMLtoPDF error: Unsupported stamp font " + name);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.christopherdro.htmltopdf;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.pdf.PdfRenderer;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Renders the first page of a PDF to a PNG with the platform {@link PdfRenderer}, which
+ * rasterizes natively and is much faster than the PDFBox renderer.
+ * <p>
+ * Thumbnails are cached by the contents of the PDF and the width, so a preview served from
+ * the render cache gets its thumbnail from the thumbnail cache as well.
+ */
+@TargetApi (Build.VERSION_CODES.LOLLIPOP)
+class ThumbnailRenderer {
+
+    static final int DEFAULT_WIDTH = 300;
+
+    private final PdfRenderCache mCache;
+
+    ThumbnailRenderer (PdfRenderCache cache) {
+        mCache = cache;
+    }
+
+    static boolean isSupported () {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * Writes a PNG of the first page of {@code pdf}, {@code width} pixels wide, to
+     * {@code destination}.
+     */
+    void render (File pdf, int width, File destination) throws IOException {
+        String key = PdfRenderCache.key (PdfRenderCache.keyOf (pdf), String.valueOf (width));
+        if (mCache.get (key, destination))
+            return;
+        renderFirstPage (pdf, width, destination);
+        mCache.put (key, destination);
+    }
+
+    private static void renderFirstPage (File pdf, int width, File destination) throws IOException {
+        try (ParcelFileDescriptor descriptor = ParcelFileDescriptor.open (pdf, ParcelFileDescriptor.MODE_READ_ONLY);
+             PdfRenderer renderer = new PdfRenderer (descriptor)) {
+            if (renderer.getPageCount () == 0)
+                throw new IOException ("RNHTMLtoPDF error: " + pdf + " has no pages.");
+            Bitmap bitmap;
+            try (PdfRenderer.Page page = renderer.openPage (0)) {
+                int height = Math.max (1, Math.round ((float) width * page.getHeight () / page.getWidth ()));
+                bitmap = Bitmap.createBitmap (width, height, Bitmap.Config.ARGB_8888);
+                // pages are transparent where the HTML has no background
+                bitmap.eraseColor (Color.WHITE);
+                page.render (bitmap, null, null, PdfRenderer.Page.RENDER_MODE_FOR_DISPLAY);
+            }
+            try (OutputStream out = new FileOutputStream (destination)) {
+                if (!bitmap.compress (Bitmap.CompressFormat.PNG, 100, out))
+                    throw new IOException ("RNHTMLtoPDF error: Could not write " + destination);
+            } finally {
+                bitmap.recycle ();
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.christopherdro.htmltopdf;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fills the {@code __TOC_PAGE__:name} placeholders of a table of contents template with the
+ * pages of the matching {@code __TOC_ANCHOR__:name} markers.
+ */
+class TocTemplate {
+
+    static final String PAGE_PLACEHOLDER_PREFIX = "__TOC_PAGE__:";
+    static final String UNKNOWN_PAGE = "?";
+
+    private static final Pattern PAGE_PLACEHOLDER =
+            Pattern.compile (Pattern.quote (PAGE_PLACEHOLDER_PREFIX) + "([^\\s<>\"']+)");
+
+    private TocTemplate () {
+    }
+
+    /**
+     * Returns the names of the anchors the template refers to.
+     */
+    static Set<String> getAnchorNames (String tocHtml) {
+        Set<String> names = new HashSet<> ();
+        Matcher matcher = PAGE_PLACEHOLDER.matcher (tocHtml);
+        while (matcher.find ())
+            names.add (matcher.group (1));
+        return names;
+    }
+
+    /**
+     * Replaces every placeholder with the page of its anchor plus {@code pageOffset}, the
+     * number of pages that end up in front of the body. Unknown anchors become
+     * {@link #UNKNOWN_PAGE}.
+     */
+    static String fill (String tocHtml, Map<String, AnchorExtractor.Anchor> anchors, int pageOffset) {
+        Matcher matcher = PAGE_PLACEHOLDER.matcher (tocHtml);
+        StringBuffer result = new StringBuffer (tocHtml.length ());
+        while (matcher.find ()) {
+            AnchorExtractor.Anchor anchor = anchors.get (matcher.group (1));
+            String page = anchor != null ? String.valueOf (anchor.page + pageOffset) : UNKNOWN_PAGE;
+            matcher.appendReplacement (result, page);
+        }
+        matcher.appendTail (result);
+        return result.toString ();
+    }
+}
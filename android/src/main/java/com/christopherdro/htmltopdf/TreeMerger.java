@@ -0,0 +1,299 @@
+package com.christopherdro.htmltopdf;
+
+import com.tom_roush.pdfbox.io.MemoryUsageSetting;
+import com.tom_roush.pdfbox.multipdf.PDFMergerUtility;
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Merges sections as a tree: every {@link #FAN_IN} consecutive sections are merged into one
+ * document as soon as they have all been offered, then every {@link #FAN_IN} of those, and
+ * so on up to the single result. Groups at any level are merged concurrently, so no append
+ * ever targets a document holding more than a {@link #FAN_IN}th of the pages of the next
+ * level up.
+ * <p>
+ * Every group is merged first to last into its first part, so the page order is the same as
+ * with {@link SequentialMerger}. At most {@code parallelism} groups are merged at once and
+ * each holds two documents open. Merged groups wait for their siblings as open documents
+ * while fewer than {@code maxOpenDocuments} are open in total; beyond that they are saved to
+ * a temp file and closed until they are needed.
+ */
+class TreeMerger implements SectionMerger {
+
+    static final int FAN_IN = 8;
+    static final int DEFAULT_MAX_OPEN_DOCUMENTS = 16;
+
+    /**
+     * A section or merged group, either still in a file or as an open document.
+     */
+    private static final class Part {
+        final File file;
+        final boolean temporary;
+        final PDDocument document;
+
+        Part (File file, boolean temporary) {
+            this.file = file;
+            this.temporary = temporary;
+            this.document = null;
+        }
+
+        Part (PDDocument document) {
+            this.file = null;
+            this.temporary = false;
+            this.document = document;
+        }
+    }
+
+    private final Executor mExecutor;
+    private final MemoryUsageSetting mMemSettings;
+    private final Callback mCallback;
+    private final ConversionMetrics mMetrics;
+    private final File mTempDirectory;
+    private final int mParallelism;
+    private final int mMaxOpenDocuments;
+    /**
+     * Parts waiting to be merged, by level and index. Level 0 holds the sections; the last
+     * level holds the single result.
+     */
+    private final List<Part[]> mLevels = new ArrayList<> ();
+    /**
+     * Groups whose parts are all there, as {level, group} pairs.
+     */
+    private final ArrayDeque<int[]> mReadyGroups = new ArrayDeque<> ();
+    private int mRunning;
+    private int mWaitingDocuments;
+    private int mAppended;
+    private boolean mFailed;
+    private boolean mMerged;
+
+    /**
+     * @param parallelism      the number of groups merged at the same time
+     * @param maxOpenDocuments the number of documents that may be open at once, at least
+     *                         two per group merged in parallel
+     * @param tempDirectory    where merged groups are saved when too many are open
+     */
+    TreeMerger (int sectionCount, MemoryUsageSetting memSettings, Executor executor, int parallelism,
+                int maxOpenDocuments, File tempDirectory, ConversionMetrics metrics, Callback callback) {
+        mMemSettings = memSettings;
+        mExecutor = executor;
+        mParallelism = Math.max (1, parallelism);
+        mMaxOpenDocuments = Math.max (2 * mParallelism, maxOpenDocuments);
+        mTempDirectory = tempDirectory;
+        mMetrics = metrics;
+        mCallback = callback;
+        int size = sectionCount;
+        do {
+            mLevels.add (new Part[size]);
+            size = (size + FAN_IN - 1) / FAN_IN;
+        } while (size > 1);
+        mLevels.add (new Part[1]);
+    }
+
+    @Override
+    public synchronized void offer (int index, File file, boolean temporary) {
+        if (mFailed) {
+            if (temporary)
+                file.delete ();
+            return;
+        }
+        mLevels.get (0)[index] = new Part (file, temporary);
+        addIfReady (0, index / FAN_IN);
+        schedule ();
+    }
+
+    @Override
+    public synchronized boolean isFailed () {
+        return mFailed;
+    }
+
+    @Override
+    public void fail (Exception error) {
+        synchronized (this) {
+            if (mFailed || mMerged)
+                return;
+            mFailed = true;
+            mReadyGroups.clear ();
+            for (Part[] level : mLevels) {
+                for (int i = 0; i < level.length; i++) {
+                    if (level[i] != null)
+                        release (level[i]);
+                    level[i] = null;
+                }
+            }
+            mWaitingDocuments = 0;
+        }
+        mCallback.onFailed (error);
+    }
+
+    /**
+     * Queues group {@code group} of {@code level} once all of its parts are there.
+     */
+    private void addIfReady (int level, int group) {
+        Part[] parts = mLevels.get (level);
+        int end = Math.min (parts.length, (group + 1) * FAN_IN);
+        for (int i = group * FAN_IN; i < end; i++) {
+            if (parts[i] == null)
+                return;
+        }
+        mReadyGroups.add (new int[]{level, group});
+    }
+
+    /**
+     * Starts ready groups while there are free slots. Called with the lock held.
+     */
+    private void schedule () {
+        while (mRunning < mParallelism && !mReadyGroups.isEmpty ()) {
+            int[] next = mReadyGroups.poll ();
+            final int level = next[0];
+            final int group = next[1];
+            Part[] parts = mLevels.get (level);
+            int end = Math.min (parts.length, (group + 1) * FAN_IN);
+            final Part[] groupParts = new Part[end - group * FAN_IN];
+            for (int i = 0; i < groupParts.length; i++) {
+                groupParts[i] = parts[group * FAN_IN + i];
+                parts[group * FAN_IN + i] = null;
+                if (groupParts[i].document != null)
+                    mWaitingDocuments--;
+            }
+            mRunning++;
+            mExecutor.execute (new Runnable () {
+                @Override
+                public void run () {
+                    mergeGroup (level, group, groupParts);
+                }
+            });
+        }
+    }
+
+    private void mergeGroup (int level, int group, Part[] parts) {
+        long startedAt = ConversionMetrics.now ();
+        boolean last = level + 1 == mLevels.size () - 1;
+        Part result;
+        try {
+            PDDocument merged = merge (parts);
+            result = last ? new Part (merged) : keepOrSpill (merged);
+            mMetrics.addStageTimeSince (ConversionMetrics.MERGE, startedAt);
+        } catch (Exception e) {
+            synchronized (this) {
+                mRunning--;
+            }
+            fail (e);
+            return;
+        }
+
+        synchronized (this) {
+            mRunning--;
+            if (mFailed) {
+                release (result);
+                return;
+            }
+            if (level == 0) {
+                mAppended += parts.length;
+                mCallback.onAppended (mAppended, mLevels.get (0).length);
+            }
+            if (!last) {
+                mLevels.get (level + 1)[group] = result;
+                addIfReady (level + 1, group / FAN_IN);
+                schedule ();
+                return;
+            }
+            // the merge is done and can no longer fail
+            mMerged = true;
+        }
+        mCallback.onMerged (result.document);
+    }
+
+    /**
+     * Appends the parts to the first one, in order. Sources are closed, and their temp
+     * files deleted, as soon as they have been appended.
+     */
+    private PDDocument merge (Part[] parts) throws IOException {
+        PDDocument merged = null;
+        try {
+            merged = open (parts[0]);
+            parts[0] = null;
+            for (int i = 1; i < parts.length; i++) {
+                PDDocument source = open (parts[i]);
+                try {
+                    new PDFMergerUtility ().appendDocument (merged, source);
+                } finally {
+                    parts[i] = null;
+                    source.close ();
+                }
+            }
+            return merged;
+        } catch (IOException | RuntimeException e) {
+            if (merged != null)
+                merged.close ();
+            for (Part part : parts) {
+                if (part != null)
+                    release (part);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the document of a part. A temporary file is deleted right away; the document
+     * keeps reading it until it is closed.
+     */
+    private PDDocument open (Part part) throws IOException {
+        if (part.document != null)
+            return part.document;
+        try {
+            return PDDocument.load (part.file, mMemSettings);
+        } finally {
+            deleteIfTemporary (part);
+        }
+    }
+
+    /**
+     * Keeps a merged group open if there is room for it, otherwise saves it to a temp file
+     * and closes it.
+     */
+    private Part keepOrSpill (PDDocument merged) throws IOException {
+        synchronized (this) {
+            // running groups, including this one, may each hold two documents
+            if (mWaitingDocuments + 2 * mRunning < mMaxOpenDocuments) {
+                mWaitingDocuments++;
+                return new Part (merged);
+            }
+        }
+        File file = File.createTempFile ("RNHTMLtoPDF-merge", ".pdf", mTempDirectory);
+        try {
+            merged.save (file);
+        } catch (IOException e) {
+            file.delete ();
+            throw e;
+        } finally {
+            merged.close ();
+        }
+        mMetrics.addTempFile (file.length ());
+        return new Part (file, true);
+    }
+
+    private void release (Part part) {
+        if (part.document != null) {
+            try {
+                part.document.close ();
+            } catch (IOException ignored) {
+            }
+        } else {
+            deleteIfTemporary (part);
+        }
+    }
+
+    private void deleteIfTemporary (Part part) {
+        if (!part.temporary)
+            return;
+        long length = part.file.length ();
+        if (part.file.delete ())
+            mMetrics.removeTempFile (length);
+    }
+}
@@ -3,8 +3,20 @@
 // Definitions by: euZebe <https://github.com/euzebe>
 // Definitions: https://github.com/DefinitelyTyped/DefinitelyTyped
 
+export interface StampOptions {
+    x?: number | undefined;
+    y?: number | undefined;
+    font?: string | undefined;
+    fontSize?: number | undefined;
+    color?: string | undefined;
+    template?: string | undefined;
+    watermarkText?: string | undefined;
+    watermarkMargin?: number | undefined;
+}
+
 export interface Options {
-    html: string;
+    /** Required unless `htmlUri` is set (android only). */
+    html?: string | undefined;
     fileName?: string | undefined;
     base64?: boolean | undefined;
     directory?: string | undefined;
@@ -22,13 +34,159 @@ export interface Options {
 
     // android only
     fonts?: string[] | undefined;
+    priority?: number | undefined;
+    stamp?: StampOptions | undefined;
+    incrementalSave?: boolean | undefined;
+    pipe?: boolean | undefined;
+    dedupe?: boolean | undefined;
+    cache?: boolean | undefined;
+    jobId?: string | undefined;
+    includeMetrics?: boolean | undefined;
+    maxMemoryBytes?: number | undefined;
+    htmlUri?: string | undefined;
+    assets?: Record<string, string> | undefined;
+    waitFor?: Array<'fonts' | 'images' | 'signal'> | undefined;
+    readyTimeoutMs?: number | undefined;
+    maxReloads?: number | undefined;
+    pages?: Array<number | [number, number]> | undefined;
 }
 
 export interface MergeOptions {
-    html: string[];
+    /** Sections given as `{ uri }` are android only. */
+    html: Array<string | { uri: string }>;
     fileName?: string | undefined;
+    base64?: boolean | undefined;
     directory?: string | undefined;
     watermark?: boolean | undefined;
+    height?: number | undefined;
+    width?: number | undefined;
+
+    // android only
+    mergeMode?: 'sequential' | 'tree' | undefined;
+    parallelism?: number | undefined;
+    maxOpenDocuments?: number | undefined;
+    priority?: number | undefined;
+    stamp?: StampOptions | undefined;
+    cache?: boolean | undefined;
+    jobId?: string | undefined;
+    includeMetrics?: boolean | undefined;
+    maxMemoryBytes?: number | undefined;
+    assets?: Record<string, string> | undefined;
+    waitFor?: Array<'fonts' | 'images' | 'signal'> | undefined;
+    readyTimeoutMs?: number | undefined;
+    maxReloads?: number | undefined;
+}
+
+export interface TocOptions extends Options {
+    tocHtml: string;
+    tocPageCount?: number | undefined;
+}
+
+export interface CacheOptions {
+    maxSizeBytes?: number | undefined;
+    assetMaxSizeBytes?: number | undefined;
+}
+
+export interface CacheStats {
+    hits: number;
+    misses: number;
+    evictions: number;
+    entries: number;
+    sizeBytes: number;
+    maxSizeBytes: number;
+    sections?: CacheStats | undefined;
+    assets?: CacheStats | undefined;
+    thumbnails?: CacheStats | undefined;
+}
+
+export interface PreviewOptions extends Options {
+    thumbnailWidth?: number | undefined;
+}
+
+export interface PreviewResult {
+    filePath: string;
+    thumbnailPath: string;
+    metrics?: ConversionMetrics | undefined;
+}
+
+export interface BatchOptions {
+    parallelism?: number | undefined;
+    batchId?: string | undefined;
+}
+
+export interface BatchResult {
+    filePath?: string | undefined;
+    metrics?: ConversionMetrics | undefined;
+    error?: string | undefined;
+}
+
+export interface BatchProgress extends BatchResult {
+    batchId?: string | undefined;
+    index: number;
+    completed: number;
+    failed: number;
+    total: number;
+}
+
+export interface Progress {
+    jobId: string;
+    phase: 'rendering' | 'merging' | 'stamping' | 'saving';
+    current: number;
+    total: number;
+}
+
+export interface ConversionMetrics {
+    stages: Record<string, number>;
+    renders: number;
+    reloads: number;
+    pages: number;
+    bytesWritten: number;
+    peakTempBytes: number;
+    dedupedObjects: number;
+    dedupedBytes: number;
+}
+
+export interface ResultWithMetrics {
+    filePath: string;
+    metrics: ConversionMetrics;
+}
+
+export interface ResultWithBase64 {
+    filePath: string;
+    base64: string;
+    metrics?: ConversionMetrics | undefined;
+}
+
+export interface Base64Range {
+    base64: string;
+    bytesRead: number;
+    size: number;
+}
+
+export interface Histogram {
+    count: number;
+    sum: number;
+    min: number;
+    max: number;
+    p50: number;
+    p90: number;
+    p99: number;
+    buckets: Array<{ le: number | null; count: number }>;
+}
+
+export interface Metrics {
+    succeeded: number;
+    failed: number;
+    stages: Record<string, Histogram>;
+    pages: Histogram;
+    bytesWritten: Histogram;
+    peakTempBytes: Histogram;
+}
+
+export interface QueueOptions {
+    maxParallelJobs?: number | undefined;
+    maxQueuedJobs?: number | undefined;
+    queueFullPolicy?: 'reject' | 'wait' | undefined;
 }
 
 export interface Pdf {
@@ -36,6 +194,56 @@ export interface Pdf {
     base64?: string | undefined;
 }
 
+export interface AnchorIndexOptions {
+    anchors?: string[] | undefined;
+    positions?: boolean | undefined;
+    parallelism?: number | undefined;
+    maxMemoryBytes?: number | undefined;
+}
+
+export interface AnchorPosition {
+    page: number;
+    x: number;
+    y: number;
+}
+
+export interface AnchorIndex {
+    pages: Record<string, number>;
+    positions?: Record<string, AnchorPosition> | undefined;
+}
+
+export interface WebViewPoolStats {
+    hits: number;
+    misses: number;
+    idle: number;
+    maxSize: number;
+}
+
+export function convert(options: Options & { base64: true }): Promise<ResultWithBase64>;
+export function convert(options: Options & { includeMetrics: true }): Promise<ResultWithMetrics>;
 export function convert(options: Options): Promise<string>;
+export function mergeAndConvert(options: MergeOptions & { base64: true }): Promise<ResultWithBase64>;
+export function mergeAndConvert(options: MergeOptions & { includeMetrics: true }): Promise<ResultWithMetrics>;
 export function mergeAndConvert(options: MergeOptions): Promise<string>;
+export function convertWithToc(options: TocOptions & { base64: true }): Promise<ResultWithBase64>;
+export function convertWithToc(options: TocOptions & { includeMetrics: true }): Promise<ResultWithMetrics>;
+export function convertWithToc(options: TocOptions): Promise<string>;
 export function extractAnchorPages(filePath: string, anchors: string[]): Promise<Record<string, number>>;
+export function extractAnchorIndex(filePath: string, options: AnchorIndexOptions): Promise<AnchorIndex>;
+
+// android only
+export function convertBatch(jobs: Options[], options: BatchOptions): Promise<BatchResult[]>;
+export function preview(options: PreviewOptions): Promise<PreviewResult>;
+export function cancel(jobId: string): Promise<boolean>;
+export function getMetrics(): Promise<Metrics>;
+export function prewarm(): Promise<void>;
+export function resetMetrics(): void;
+export function configureQueue(options: QueueOptions): void;
+export function configureCache(options: CacheOptions): void;
+export function getCacheStats(): Promise<CacheStats>;
+export function readBase64Range(filePath: string, offset: number, length: number): Promise<Base64Range>;
+export function preloadAssets(assets: Record<string, string>): Promise<number>;
+export function invalidateCache(options: Options): Promise<void>;
+export function clearCache(): Promise<void>;
+export function setWebViewPoolSize(size: number): void;
+export function getWebViewPoolStats(): Promise<WebViewPoolStats>;